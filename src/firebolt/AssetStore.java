@@ -0,0 +1,250 @@
+package firebolt;
+
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Writes the background images of the document. Every image is named after
+ * a hash of its pixels, so identical images are written once and shared by
+ * all elements using them, and a name never changes while the image doesn't.
+ * 
+ * The images are encoded on a pool of threads while the style is built, and
+ * written to disk on separate threads. join() waits for all of them.
+ *
+ * @author Alex Jeensma
+ */
+public class AssetStore
+{
+	/**
+	 * Folder the images are written to, relative to the output folder
+	 */
+	private static final String IMAGE_FOLDER = "images/";
+
+	/**
+	 * Number of hex characters of the hash used in the name
+	 */
+	private static final int NAME_LENGTH = 16;
+
+	/**
+	 * The output folder including a trailing slash
+	 */
+	private String output;
+
+	/**
+	 * Path of every stored image by its hash
+	 */
+	private HashMap<String,String> paths = new HashMap<String,String>();
+	
+	/**
+	 * Encodes the PNG images, a full queue makes the caller encode
+	 */
+	private ThreadPoolExecutor encoders;
+	
+	/**
+	 * Writes the encoded images to disk
+	 */
+	private ExecutorService writers;
+	
+	/**
+	 * Encode and write jobs that haven't been joined yet
+	 */
+	private List<Future<?>> jobs = Collections.synchronizedList(new ArrayList<Future<?>>());
+
+	/**
+	 * Create a new store encoding on one thread per processor
+	 *
+	 * @param outputFolder the output folder including a trailing slash
+	 */
+	public AssetStore(String outputFolder)
+	{
+		this(outputFolder, Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	 * Create a new store
+	 *
+	 * @param outputFolder the output folder including a trailing slash
+	 * @param threads number of images encoded at the same time
+	 */
+	public AssetStore(String outputFolder, int threads)
+	{
+		output = outputFolder;
+		encoders = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, 
+				new ArrayBlockingQueue<Runnable>(threads * 2), daemonThreads(), new ThreadPoolExecutor.CallerRunsPolicy());
+		writers = Executors.newCachedThreadPool(daemonThreads());
+	}
+	
+	/**
+	 * Threads which don't keep the program running when a conversion fails
+	 * 
+	 * @return thread factory
+	 */
+	static ThreadFactory daemonThreads()
+	{
+		return new ThreadFactory() {
+			public Thread newThread(Runnable r)
+			{
+				Thread t = Executors.defaultThreadFactory().newThread(r);
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	/**
+	 * Store an image, it is only written if no image with the same pixels was stored before.
+	 * The image is written in the background, it must not change until join() returns.
+	 *
+	 * @param image the image, or the top left part of the image of the statistics
+	 * @param stats statistics of the (full) image, used to read the pixels
+	 * @return path of the image relative to the output folder
+	 */
+	public String store(BufferedImage image, ImageStatistics stats)
+	{
+		String hash = hash(stats, image.getWidth(), image.getHeight());
+		String path;
+		
+		synchronized(paths)
+		{
+			path = paths.get(hash);
+			if(path != null) {
+				return path;
+			}
+			path = IMAGE_FOLDER + hash + ".png";
+			paths.put(hash, path);
+		}
+		
+		jobs.add(encoders.submit(new EncodeJob(image, new File(output + path))));
+
+		return path;
+	}
+	
+	/**
+	 * Wait until all stored images are written, and stop the threads
+	 * 
+	 * @throws IOException when an image couldn't be written
+	 */
+	public void join() throws IOException
+	{
+		try
+		{
+			// write jobs are added by the encode jobs, so the list can grow while waiting
+			for(int i = 0; i < jobs.size(); i++)
+			{
+				jobs.get(i).get();
+			}
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while writing the images");
+		}
+		catch(ExecutionException e)
+		{
+			if(e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Couldn't write image: " + e.getCause().getMessage(), e.getCause());
+		}
+		finally
+		{
+			jobs.clear();
+			encoders.shutdown();
+			writers.shutdown();
+		}
+	}
+	
+	/**
+	 * Encodes an image to PNG and hands the bytes to a writer
+	 */
+	private class EncodeJob implements Callable<Void>
+	{
+		private BufferedImage image;
+		
+		private File file;
+		
+		public EncodeJob(BufferedImage image, File file)
+		{
+			this.image = image;
+			this.file = file;
+		}
+		
+		public Void call() throws IOException
+		{
+			ByteArrayOutputStream png = new ByteArrayOutputStream();
+			ImageIO.write(image, "png", png);
+			
+			final byte[] bytes = png.toByteArray();
+			jobs.add(writers.submit(new Callable<Void>() {
+				public Void call() throws IOException
+				{
+					FileOutputStream out = new FileOutputStream(file);
+					try
+					{
+						out.write(bytes);
+					}
+					finally
+					{
+						out.close();
+					}
+					return null;
+				}
+			}));
+			return null;
+		}
+	}
+
+	/**
+	 * Hash the size and the ARGB pixels of the top left part of an image
+	 *
+	 * @param stats the image
+	 * @param width width of the part
+	 * @param height height of the part
+	 * @return hex hash
+	 */
+	private static String hash(ImageStatistics stats, int width, int height)
+	{
+		MessageDigest digest;
+		try
+		{
+			digest = MessageDigest.getInstance("SHA-256");
+		}
+		catch(NoSuchAlgorithmException e)
+		{
+			// every Java platform has SHA-256
+			throw new IllegalStateException(e);
+		}
+
+		int[] row = new int[stats.getWidth()];
+		byte[] bytes = new byte[width * 4];
+
+		digest.update((width + "x" + height).getBytes());
+
+		for(int y = 0; y < height; y++)
+		{
+			stats.readRow(y, row);
+			for(int x = 0; x < width; x++)
+			{
+				int pixel = row[x];
+				bytes[x * 4] = (byte) (pixel >>> 24);
+				bytes[x * 4 + 1] = (byte) (pixel >>> 16);
+				bytes[x * 4 + 2] = (byte) (pixel >>> 8);
+				bytes[x * 4 + 3] = (byte) pixel;
+			}
+			digest.update(bytes);
+		}
+
+		StringBuilder hex = new StringBuilder();
+		for(byte b : digest.digest())
+		{
+			hex.append(String.format("%02x", b & 0xff));
+		}
+		return hex.substring(0, NAME_LENGTH);
+	}
+}
@@ -1,5 +1,7 @@
 package firebolt;
 
+import java.io.IOException;
+
 import firebolt.css.*;
 
 /**
@@ -63,36 +65,43 @@ public class Document {
 	}
 	
 	/**
-	 * Return the document as string
+	 * Optimize the stylesheet, selectors added afterwards are printed as they are
+	 */
+	public void optimizeStylesheet()
+	{
+		stylesheet.optimize();
+	}
+	
+	/**
+	 * Print the document
 	 * 
-	 * @return HTML string
+	 * @param out receives the HTML, e.g. the writer of the output file
+	 * @throws IOException
 	 */
-	public String print()
+	public void print(Appendable out) throws IOException
 	{
-		String HTML = "<!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML 1.0 Transitional//EN\" \"http://www.w3.org/TR/xhtml1/DTD/xhtml1-transitional.dtd\">\n";
+		out.append("<!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML 1.0 Transitional//EN\" \"http://www.w3.org/TR/xhtml1/DTD/xhtml1-transitional.dtd\">\n");
 		
-		HTML += "<html xmlns=\"http://www.w3.org/1999/xhtml\">\n";
-		HTML += "<head>\n";
-		HTML += "\t<title>Your Title</title>\n";
+		out.append("<html xmlns=\"http://www.w3.org/1999/xhtml\">\n");
+		out.append("<head>\n");
+		out.append("\t<title>Your Title</title>\n");
 		
-		HTML += "\t<style type=\"text/css\">\n";
-		HTML += stylesheet.printRecursive();
-		HTML += "\t</style>\n";
+		out.append("\t<style type=\"text/css\">\n");
+		stylesheet.printRecursive(out);
+		out.append("\t</style>\n");
 		
-		HTML += "</head>\n";
+		out.append("</head>\n");
 		
 		String appendElement = config.get("comment-template");
 		
 		if(appendElement != null) {
 			String[] aP = appendElement.split("\\|");
-			HTML += body.printRecursive(0, aP[0], aP[1]);
+			body.printRecursive(out, 0, aP[0], aP[1]);
 		}
 		else {
-			HTML += body.printRecursive(0, "", "");
+			body.printRecursive(out, 0, "", "");
 		}
 		
-		HTML += "</html>";
-		
-		return HTML;
+		out.append("</html>");
 	}
 }
@@ -1,13 +1,12 @@
 package firebolt;
 
 import java.awt.Color;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
-import java.io.File;
+import java.io.IOException;
 import java.util.*;
 import java.util.Map.Entry;
 
-import javax.imageio.ImageIO;
-
 import psd.model.Layer;
 import psd.parser.layer.LayerType;
 
@@ -31,7 +30,12 @@ public class Element
 	/**
 	 * Holds the so called void elements
 	 */
-	public final String[] void_elements = {"area","base","br","col","command","embed","hr","img","input","keygen","link","meta","param","source","track","wbr"};
+	public static final String[] void_elements = {"area","base","br","col","command","embed","hr","img","input","keygen","link","meta","param","source","track","wbr"};
+	
+	/**
+	 * The void elements for lookups
+	 */
+	private static final HashSet<String> voidElements = new HashSet<String>(Arrays.asList(void_elements));
 	
 	/**
 	 * Layer coupled with this Element
@@ -63,6 +67,21 @@ public class Element
 	 */
 	private LinkedList<Element> siblings;
 	
+	/**
+	 * Pixel statistics of the layer image (null until the style is built)
+	 */
+	private ImageStatistics imageStatistics;
+	
+	/**
+	 * Background properties in the order they're added, null until the background is analyzed
+	 */
+	private LinkedHashMap<String,String> background;
+	
+	/**
+	 * Why the background couldn't be analyzed, reported when the style is built
+	 */
+	private Exception backgroundError;
+	
 	/**
 	 * Create a new element
 	 * 
@@ -100,25 +119,30 @@ public class Element
 	}
 	
 	/**
-	 * Build the style of the element
-	 * 
-	 * @TODO Do some complex calculations based on the layer
+	 * Find the background of the element from the layer image. It doesn't depend on the
+	 * other elements, so it can run on any thread as soon as the layer is read. The
+	 * properties are added to the style by buildStyle().
 	 */
-	public void buildStyle()
+	public synchronized void analyzeBackground()
 	{
+		if(background != null || backgroundError != null) {
+			return;
+		}
+		
+		background = new LinkedHashMap<String,String>();
+		
 		try
 		{
+			// a single colored layer is known from its compressed channels, no need for the image
+			Integer uniformColor = layer.getUniformColor();
+			
 			// get the image from the layer
-			BufferedImage bi = layer.getImage();
+			BufferedImage bi = uniformColor == null ? layer.getImage() : null;
 			
-			if(bi == null) {
+			if(bi == null && uniformColor == null) {
 				throw new ParseException("Could't get the image from the layer, is it named correctly?");
 			}
 			
-			// image dimensions
-			int layerWidth = bi.getWidth();
-			int layerHeight = bi.getHeight();
-			
 			/** 
 			 *	BACKGROUND OF THE ELEMENT 
 			 * 	- Solid color
@@ -126,38 +150,91 @@ public class Element
 			 *  - Image
 			 */
 			
-			Set<Integer> colors = new HashSet<Integer>();
+			GradientDetector gradient;
 			
-		    for(int y = 0; y < layerHeight; y++) 
-		    {
-		        for(int x = 0; x < layerWidth; x++) 
-		        {
-		            int pixel = bi.getRGB(x, y);     
-		            colors.add(pixel);
-		        }
-		    }			
+			if(uniformColor == null) {
+				imageStatistics = new ImageStatistics(bi);
+				if(imageStatistics.isSolid()) {
+					uniformColor = imageStatistics.getColor();
+				}
+			}
 		    
-		    if(colors.size() == 1) {
+		    if(uniformColor != null) {
 		    	// solid color
-				Color c = new Color(bi.getRGB(0, 0));
-				css.addProperty("background", "rgb("+c.getRed()+","+c.getGreen()+","+c.getBlue()+")");
+				Color c = new Color(uniformColor);
+				background.put("background", "rgb("+c.getRed()+","+c.getGreen()+","+c.getBlue()+")");
+		    }
+		    else if((gradient = new GradientDetector(imageStatistics)).isGradient()) {
+		    	// linear gradient, no image needed
+		    	background.put("background", gradient.getCss());
 		    }
 		    else 
 		    {
 		    	// more than one color
 		    	
-		    	/** @TODO check for tileable.. */
-		    	
-		    	// write image to file and set reference
-		    	String imagePath = "images/bg_" + attributes.get("id")  + ".png";
+		    	// a repeating background only needs its smallest tile
+		    	TileDetector tiles = new TileDetector(imageStatistics);
 		    	
-		    	File file = new File(Parser.getOutput() + imagePath);
-		    	file.createNewFile();
+		    	// pixels which aren't fully transparent, known from the alpha runs without scanning the image
+		    	Rectangle content = tiles.isTileable() ? null : layer.getContentBounds();
 		    	
-		    	ImageIO.write(bi, "png", file);
+		    	if(content == null && !tiles.isTileable()) {
+		    		// no alpha runs to tell (raw or deep layer), scan the image instead
+		    		content = imageStatistics.getOpaqueBounds();
+		    	}
 		    	
-		    	css.addProperty("background", "url('"+imagePath+"')");
+		    	if(content != null && content.isEmpty()) {
+		    		// fully transparent, nothing to write
+		    		background.put("background", "none");
+		    	}
+		    	else if(content != null && (content.width < layer.getWidth() || content.height < layer.getHeight())) {
+		    		// only write the part with content and put it in place
+		    		BufferedImage part = bi.getSubimage(content.x, content.y, content.width, content.height);
+		    		String imagePath = Parser.getAssetStore().store(part, new ImageStatistics(part));
+		    		
+		    		background.put("background", "url('"+imagePath+"') "+content.x+"px "+content.y+"px no-repeat");
+		    	}
+		    	else {
+			    	// write image to file (once for identical images) and set reference
+			    	String imagePath = Parser.getAssetStore().store(tiles.isTileable() ? tiles.getTile(bi) : bi, imageStatistics);
+			    	
+			    	background.put("background", "url('"+imagePath+"')");
+			    	
+			    	if(tiles.isTileable()) {
+			    		background.put("background-repeat", tiles.getRepeat());
+			    	}
+		    	}
 		    }
+		}
+		catch(Exception e)
+		{
+			backgroundError = e;
+		}
+	}
+	
+	/**
+	 * Build the style of the element
+	 * 
+	 * @TODO Do some complex calculations based on the layer
+	 */
+	public void buildStyle()
+	{
+		try
+		{
+			analyzeBackground();
+			
+			if(backgroundError != null) {
+				throw backgroundError;
+			}
+			
+			for(Map.Entry<String,String> property : background.entrySet())
+			{
+				css.addProperty(property.getKey(), property.getValue());
+			}
+			
+			// image dimensions
+			int layerWidth = layer.getWidth();
+			int layerHeight = layer.getHeight();
 			
 			/**
 			 * DIMENSIONS OF THE ELEMENT
@@ -393,15 +470,15 @@ public class Element
 	 */
 	private String buildAttributes()
 	{
-		String attributesString = "";
+		StringBuilder attributesString = new StringBuilder();
 		Iterator<Entry<String, String>> entries = attributes.entrySet().iterator();
 		while (entries.hasNext()) {
 			Map.Entry<String,String> entry = (Map.Entry<String,String>)entries.next();
 		    String attr = (String)entry.getKey();
 		    String value = (String)entry.getValue();
-		    attributesString += " " + attr + "=\"" + value + "\"";
+		    attributesString.append(' ').append(attr).append("=\"").append(value).append('"');
 		}
-		return attributesString;		
+		return attributesString.toString();
 	}
 	
 	/**
@@ -436,48 +513,50 @@ public class Element
 	/**
 	 * Print the element and it's children recursively
 	 * 
-	 * @TODO Make a String repeat method
-	 * 
-	 * @return parsed HTML
+	 * @param out receives the HTML
+	 * @param level indentation level of the element
+	 * @param appendFirst string appended to the start tag
+	 * @param appendLast string appended to the end tag
+	 * @throws IOException
 	 */
-	public String printRecursive(int level, String appendFirst, String appendLast)
+	public void printRecursive(Appendable out, int level, String appendFirst, String appendLast) throws IOException
 	{
 		if(tag.length() == 0) {
-			return "";
+			return;
 		}
 		
-		String HTML = "<"+tag;
-		String indentation = "";
+		out.append('<').append(tag).append(buildAttributes()).append('>').append(buildAppend(appendFirst)).append('\n');
 		
-		HTML += buildAttributes();
-		
-		HTML += ">"+buildAppend(appendFirst)+"\n";
-		
-		level++;
-		// Element e : children
-		for(int y = children.size() - 1; y >= 0; y--) {
-			indentation = "";
-			for(int i = 0; level > i; i++) {
-				indentation += "\t";
-			}
-			HTML += indentation + children.get(y).printRecursive(level, appendFirst, appendLast);
+		// the top layer (last child) comes first
+		Iterator<Element> reversed = children.descendingIterator();
+		while(reversed.hasNext())
+		{
+			indent(out, level + 1);
+			reversed.next().printRecursive(out, level + 1, appendFirst, appendLast);
 		}
-		level--;
 		
-		indentation = "";
-		for(int i = 0; level > i; i++) {
-			indentation += "\t";
-		}		
-		
-		String end_tag = "";
+		indent(out, level);
 		
-		if(!Arrays.asList(void_elements).contains(tag)) {
-			end_tag = tag;
+		out.append("</");
+		if(!voidElements.contains(tag)) {
+			out.append(tag);
+		}
+		out.append('>').append(buildAppend(appendLast)).append('\n');
+	}
+	
+	/**
+	 * Print tabs for an indentation level
+	 * 
+	 * @param out receives the tabs
+	 * @param level indentation level
+	 * @throws IOException
+	 */
+	private static void indent(Appendable out, int level) throws IOException
+	{
+		for(int i = 0; i < level; i++)
+		{
+			out.append('\t');
 		}
-		
-		HTML += indentation + "</"+end_tag+">"+buildAppend(appendLast)+"\n";
-		
-		return HTML;
 	}
 	
 	/**
@@ -585,6 +664,16 @@ public class Element
 		return tag;
 	}	
 	
+	/**
+	 * Get the pixel statistics of the layer image
+	 * 
+	 * @return statistics, null if the style isn't built yet or the layer color was known without the image
+	 */
+	public ImageStatistics getImageStatistics()
+	{
+		return imageStatistics;
+	}
+	
 	/**
 	 * Get the stylesheet selector
 	 * 
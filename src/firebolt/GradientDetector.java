@@ -0,0 +1,553 @@
+package firebolt;
+
+/**
+ * Detects linear gradients (horizontal, vertical or at an angle, with several
+ * color stops) in a layer image, so they can be written as a CSS
+ * linear-gradient() instead of an image.
+ *
+ * The direction and the color stops are estimated from a grid of at most
+ * GRID x GRID pixels. A gradient which fits the grid is then checked against
+ * every pixel, stopping at the first one that doesn't match, so details
+ * between the sampled rows and columns are never lost. The colors are
+ * compared premultiplied, the way browsers interpolate gradients.
+ *
+ * @author Alex Jeensma
+ */
+public class GradientDetector
+{
+	/**
+	 * Maximum number of sampled rows and columns
+	 */
+	private static final int GRID = 128;
+
+	/**
+	 * Maximum difference per channel between the image and the gradient
+	 */
+	private static final int TOLERANCE = 4;
+
+	/**
+	 * Maximum number of color stops
+	 */
+	private static final int MAX_STOPS = 8;
+
+	/**
+	 * Corrections tried on the estimated angle, in order
+	 */
+	private static final int[] ANGLE_STEPS = {0, -1, 1, -2, 2, -3, 3, -4, 4, -5, 5};
+
+	/**
+	 * Number of positions along the gradient line the colors are averaged in
+	 */
+	private static final int MAX_BINS = 256;
+
+	/**
+	 * Sample positions
+	 */
+	private int[] sampleX;
+	private int[] sampleY;
+
+	/**
+	 * Premultiplied A, R, G, B of the samples, [row][column][channel]
+	 */
+	private float[][][] samples;
+
+	/**
+	 * The image, read again to check every pixel
+	 */
+	private ImageStatistics stats;
+
+	/**
+	 * The gradient that fits the samples: CSS angle, stop positions and premultiplied stop colors
+	 */
+	private int fitAngle;
+	private float[] fitPositions;
+	private float[][] fitColors;
+
+	private int width;
+
+	private int height;
+
+	/**
+	 * The CSS value, null if the image isn't a gradient
+	 */
+	private String css;
+
+	/**
+	 * Look for a gradient in the image
+	 *
+	 * @param stats statistics of the image, used to read its pixels
+	 */
+	public GradientDetector(ImageStatistics stats)
+	{
+		this.stats = stats;
+		width = stats.getWidth();
+		height = stats.getHeight();
+
+		if(width < 2 && height < 2 || stats.isSolid()) {
+			return;
+		}
+
+		sample(stats);
+
+		// the estimate can be off by a degree or two, try the angles around it as well
+		int angle = findAngle();
+		boolean found = false;
+		for(int i = 0; i < ANGLE_STEPS.length && !found; i++)
+		{
+			found = fit(normalize(angle + ANGLE_STEPS[i]));
+		}
+
+		if(!found && angle % 90 != 0) {
+			// a weak angle estimate, try the straight directions as well
+			found = fit(180) || fit(90);
+		}
+
+		// the grid can miss thin lines and small details, so check all the other pixels of the fit once
+		if(found && matchesAllPixels()) {
+			css = toCss(fitAngle, fitPositions, fitColors);
+		}
+	}
+
+	/**
+	 * Read the sample grid
+	 *
+	 * @param stats the image
+	 */
+	private void sample(ImageStatistics stats)
+	{
+		sampleX = samplePositions(width);
+		sampleY = samplePositions(height);
+		samples = new float[sampleY.length][sampleX.length][];
+
+		int[] row = new int[width];
+		for(int j = 0; j < sampleY.length; j++)
+		{
+			stats.readRow(sampleY[j], row);
+			for(int i = 0; i < sampleX.length; i++)
+			{
+				samples[j][i] = premultiply(row[sampleX[i]]);
+			}
+		}
+	}
+
+	/**
+	 * Evenly spread positions, including the first and last pixel
+	 *
+	 * @param size width or height
+	 * @return positions
+	 */
+	private static int[] samplePositions(int size)
+	{
+		int count = Math.min(size, GRID);
+		int[] positions = new int[count];
+		for(int i = 0; i < count; i++)
+		{
+			positions[i] = count == 1 ? 0 : (int) ((long) i * (size - 1) / (count - 1));
+		}
+		return positions;
+	}
+
+	/**
+	 * Premultiplied A, R, G, B of an ARGB color
+	 *
+	 * @param argb the color
+	 * @return channels
+	 */
+	private static float[] premultiply(int argb)
+	{
+		return premultiply(argb, new float[4]);
+	}
+
+	/**
+	 * Premultiplied A, R, G, B of an ARGB color
+	 *
+	 * @param argb the color
+	 * @param channels receives the channels
+	 * @return channels
+	 */
+	private static float[] premultiply(int argb, float[] channels)
+	{
+		float a = argb >>> 24;
+		channels[0] = a;
+		channels[1] = ((argb >> 16) & 0xff) * a / 255f;
+		channels[2] = ((argb >> 8) & 0xff) * a / 255f;
+		channels[3] = (argb & 0xff) * a / 255f;
+		return channels;
+	}
+
+	/**
+	 * Estimate the CSS angle of the gradient from the structure tensor of the
+	 * samples, the direction in which the colors change the most
+	 *
+	 * @return angle in degrees, 1 - 180
+	 */
+	private int findAngle()
+	{
+		double jxx = 0, jyy = 0, jxy = 0;
+
+		for(int j = 0; j < sampleY.length; j++)
+		{
+			for(int i = 0; i < sampleX.length; i++)
+			{
+				for(int c = 0; c < 4; c++)
+				{
+					double gx = 0, gy = 0;
+					if(i + 1 < sampleX.length) {
+						gx = (samples[j][i + 1][c] - samples[j][i][c]) / (sampleX[i + 1] - sampleX[i]);
+					}
+					if(j + 1 < sampleY.length) {
+						gy = (samples[j + 1][i][c] - samples[j][i][c]) / (sampleY[j + 1] - sampleY[j]);
+					}
+					jxx += gx * gx;
+					jyy += gy * gy;
+					jxy += gx * gy;
+				}
+			}
+		}
+
+		// direction of the gradient in image coordinates (y pointing down)
+		double theta = 0.5 * Math.atan2(2 * jxy, jxx - jyy);
+		double dx = Math.cos(theta);
+		double dy = Math.sin(theta);
+
+		// CSS angles point up at 0deg and turn clockwise
+		int angle = (int) Math.round(Math.toDegrees(Math.atan2(dx, -dy)));
+		return normalize(angle);
+	}
+
+	/**
+	 * Bring an angle in the range 1 - 180, so gradients run to the right or down
+	 *
+	 * @param angle in degrees
+	 * @return angle in degrees
+	 */
+	private static int normalize(int angle)
+	{
+		angle = ((angle % 180) + 180) % 180;
+		return angle == 0 ? 180 : angle;
+	}
+
+	/**
+	 * Try to describe the samples with a gradient at the given angle
+	 *
+	 * @param angle CSS angle in degrees
+	 * @return true when the samples fit, the gradient is kept in the fit fields
+	 */
+	private boolean fit(int angle)
+	{
+		double radians = Math.toRadians(angle);
+		double dx = Math.sin(radians);
+		double dy = -Math.cos(radians);
+
+		// the gradient line runs through the center, its length makes the corners 0% and 100%
+		double length = Math.abs(width * dx) + Math.abs(height * dy);
+
+		// average the samples per position along the gradient line
+		int bins = (int) Math.max(2, Math.min(MAX_BINS, Math.round(length)));
+		float[][] sum = new float[bins][4];
+		double[] positionSum = new double[bins];
+		int[] count = new int[bins];
+
+		for(int j = 0; j < sampleY.length; j++)
+		{
+			for(int i = 0; i < sampleX.length; i++)
+			{
+				double t = position(sampleX[i], sampleY[j], dx, dy, length);
+				int bin = (int) Math.round(t * (bins - 1));
+				for(int c = 0; c < 4; c++)
+				{
+					sum[bin][c] += samples[j][i][c];
+				}
+				positionSum[bin] += t;
+				count[bin]++;
+			}
+		}
+
+		int used = 0;
+		float[] positions = new float[bins];
+		float[][] profile = new float[bins][];
+		for(int b = 0; b < bins; b++)
+		{
+			if(count[b] > 0) {
+				positions[used] = (float) (positionSum[b] / count[b]);
+				profile[used] = new float[4];
+				for(int c = 0; c < 4; c++)
+				{
+					profile[used][c] = sum[b][c] / count[b];
+				}
+				used++;
+			}
+		}
+
+		if(used < 2) {
+			return false;
+		}
+
+		// fit straight segments through the profile, every segment end is a color stop
+		int[] stops = new int[MAX_STOPS];
+		int stopCount = 0;
+		stops[stopCount++] = 0;
+
+		int start = 0;
+		while(start < used - 1)
+		{
+			int end = start + 1;
+			while(end + 1 < used && fitsSegment(profile, positions, start, end + 1))
+			{
+				end++;
+			}
+
+			if(stopCount == MAX_STOPS) {
+				return false;
+			}
+			stops[stopCount++] = end;
+			start = end;
+		}
+
+		float[] stopPositions = new float[stopCount];
+		float[][] stopColors = new float[stopCount][];
+		for(int s = 0; s < stopCount; s++)
+		{
+			stopPositions[s] = positions[stops[s]];
+			stopColors[s] = profile[stops[s]];
+		}
+
+		// the outer samples are pixel centers, extend the outer segments to 0% and 100% if that's close
+		float[] first = extend(stopPositions[0], stopColors[0], stopPositions[1], stopColors[1], 0);
+		if(first != null) {
+			stopColors[0] = first;
+			stopPositions[0] = 0;
+		}
+		float[] last = extend(stopPositions[stopCount - 1], stopColors[stopCount - 1],
+				stopPositions[stopCount - 2], stopColors[stopCount - 2], 1);
+		if(last != null) {
+			stopColors[stopCount - 1] = last;
+			stopPositions[stopCount - 1] = 1;
+		}
+
+		for(int s = 0; s < stopCount; s++)
+		{
+			stopColors[s] = quantize(stopColors[s]);
+		}
+
+		// every sample has to match the gradient the browser will draw
+		float[] expected = new float[4];
+		for(int j = 0; j < sampleY.length; j++)
+		{
+			for(int i = 0; i < sampleX.length; i++)
+			{
+				float t = (float) position(sampleX[i], sampleY[j], dx, dy, length);
+				if(!matches(samples[j][i], interpolate(stopPositions, stopColors, t, expected))) {
+					return false;
+				}
+			}
+		}
+
+		fitAngle = angle;
+		fitPositions = stopPositions;
+		fitColors = stopColors;
+		return true;
+	}
+
+	/**
+	 * Does every pixel of the image match the fitted gradient? Stops at the first one that doesn't.
+	 */
+	private boolean matchesAllPixels()
+	{
+		double radians = Math.toRadians(fitAngle);
+		double dx = Math.sin(radians);
+		double dy = -Math.cos(radians);
+		double length = Math.abs(width * dx) + Math.abs(height * dy);
+
+		int[] row = new int[width];
+		float[] actual = new float[4];
+		float[] expected = new float[4];
+		for(int y = 0; y < height; y++)
+		{
+			stats.readRow(y, row);
+			for(int x = 0; x < width; x++)
+			{
+				float t = (float) position(x, y, dx, dy, length);
+				if(!matches(premultiply(row[x], actual), interpolate(fitPositions, fitColors, t, expected))) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Position of a pixel along the gradient line, 0 - 1
+	 */
+	private double position(int x, int y, double dx, double dy, double length)
+	{
+		double t = ((x + 0.5 - width / 2.0) * dx + (y + 0.5 - height / 2.0) * dy) / length + 0.5;
+		return Math.max(0, Math.min(1, t));
+	}
+
+	/**
+	 * Do all profile points between start and end lie on the line between them?
+	 */
+	private static boolean fitsSegment(float[][] profile, float[] positions, int start, int end)
+	{
+		float span = positions[end] - positions[start];
+		for(int k = start + 1; k < end; k++)
+		{
+			float f = (positions[k] - positions[start]) / span;
+			for(int c = 0; c < 4; c++)
+			{
+				float expected = profile[start][c] + (profile[end][c] - profile[start][c]) * f;
+				if(Math.abs(expected - profile[k][c]) > TOLERANCE / 2f) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Color at position t on the line through two stops, null if it differs too
+	 * much from the first stop or isn't a valid color. Colors just outside the
+	 * valid range are clamped.
+	 */
+	private static float[] extend(float position, float[] color, float otherPosition, float[] otherColor, float t)
+	{
+		float span = otherPosition - position;
+		if(span == 0) {
+			return null;
+		}
+		float f = (t - position) / span;
+		float[] extended = new float[4];
+		for(int c = 0; c < 4; c++)
+		{
+			extended[c] = color[c] + (otherColor[c] - color[c]) * f;
+		}
+		if(extended[0] < -TOLERANCE || extended[0] > 255 + TOLERANCE) {
+			return null;
+		}
+		extended[0] = Math.max(0, Math.min(255, extended[0]));
+		float a = extended[0];
+		for(int c = 0; c < 4; c++)
+		{
+			if(extended[c] < -TOLERANCE || extended[c] > a + TOLERANCE || Math.abs(extended[c] - color[c]) > TOLERANCE / 2f) {
+				return null;
+			}
+			// premultiplied colors lie between 0 and the alpha
+			extended[c] = Math.max(0, Math.min(a, extended[c]));
+		}
+		return extended;
+	}
+
+	/**
+	 * Color at position t of the gradient, premultiplied, written to color
+	 */
+	private static float[] interpolate(float[] stopPositions, float[][] stopColors, float t, float[] color)
+	{
+		int s = 0;
+		while(s < stopPositions.length - 2 && t > stopPositions[s + 1])
+		{
+			s++;
+		}
+		float span = stopPositions[s + 1] - stopPositions[s];
+		float f = span <= 0 ? 0 : Math.max(0, Math.min(1, (t - stopPositions[s]) / span));
+		for(int c = 0; c < 4; c++)
+		{
+			color[c] = stopColors[s][c] + (stopColors[s + 1][c] - stopColors[s][c]) * f;
+		}
+		return color;
+	}
+
+	private static boolean matches(float[] actual, float[] expected)
+	{
+		for(int c = 0; c < 4; c++)
+		{
+			if(Math.abs(actual[c] - expected[c]) > TOLERANCE) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Round a premultiplied color to what the CSS color will be
+	 */
+	private static float[] quantize(float[] color)
+	{
+		int argb = toArgb(color);
+		return premultiply(argb);
+	}
+
+	private static int toArgb(float[] color)
+	{
+		int a = Math.round(color[0]);
+		if(a == 0) {
+			return 0;
+		}
+		int r = Math.min(255, Math.round(color[1] * 255f / a));
+		int g = Math.min(255, Math.round(color[2] * 255f / a));
+		int b = Math.min(255, Math.round(color[3] * 255f / a));
+		return a << 24 | r << 16 | g << 8 | b;
+	}
+
+	/**
+	 * Build the linear-gradient() value
+	 */
+	private static String toCss(int angle, float[] stopPositions, float[][] stopColors)
+	{
+		String direction;
+		switch(angle)
+		{
+			case 0: direction = "to top"; break;
+			case 90: direction = "to right"; break;
+			case 180: direction = "to bottom"; break;
+			default: direction = angle + "deg";
+		}
+
+		StringBuilder value = new StringBuilder("linear-gradient(").append(direction);
+		for(int s = 0; s < stopPositions.length; s++)
+		{
+			value.append(", ").append(cssColor(toArgb(stopColors[s]))).append(' ').append(percentage(stopPositions[s]));
+		}
+		return value.append(')').toString();
+	}
+
+	private static String cssColor(int argb)
+	{
+		int a = argb >>> 24;
+		String rgb = ((argb >> 16) & 0xff) + "," + ((argb >> 8) & 0xff) + "," + (argb & 0xff);
+		if(a == 255) {
+			return "rgb(" + rgb + ")";
+		}
+		long alpha = Math.round(a * 1000 / 255.0);
+		return "rgba(" + rgb + "," + (alpha == 0 ? "0" : String.valueOf(alpha / 1000.0)) + ")";
+	}
+
+	private static String percentage(float position)
+	{
+		long tenths = Math.round(position * 1000);
+		if(tenths % 10 == 0) {
+			return (tenths / 10) + "%";
+		}
+		return (tenths / 10.0) + "%";
+	}
+
+	/**
+	 * Is the image a linear gradient?
+	 *
+	 * @return true on a gradient
+	 */
+	public boolean isGradient()
+	{
+		return css != null;
+	}
+
+	/**
+	 * Get the CSS linear-gradient() value
+	 *
+	 * @return value for the background property, null if the image isn't a gradient
+	 */
+	public String getCss()
+	{
+		return css;
+	}
+}
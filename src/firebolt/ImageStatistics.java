@@ -0,0 +1,275 @@
+package firebolt;
+
+import java.awt.Rectangle;
+import java.awt.image.*;
+
+/**
+ * Scans the pixels of a layer image straight from its raster. The solid color
+ * check stops at the second distinct color, the alpha statistics are only
+ * gathered when they're asked for.
+ *
+ * @author Alex Jeensma
+ */
+public class ImageStatistics
+{
+	/**
+	 * The scanned image
+	 */
+	private BufferedImage image;
+
+	private int width;
+
+	private int height;
+
+	/**
+	 * Packed ARGB pixels, null if the raster isn't packed ints
+	 */
+	private int[] intData;
+
+	private int intOffset;
+
+	private int intStride;
+
+	/**
+	 * Alpha bits of packed pixels without alpha
+	 */
+	private int alphaBits;
+
+	/**
+	 * R, G, B (and A) banks of a banded byte raster, null otherwise
+	 */
+	private byte[][] bandData;
+
+	private int[] bandOffsets;
+
+	private int bandStride;
+
+	/**
+	 * Does every pixel have the same color?
+	 */
+	private boolean solid;
+
+	/**
+	 * ARGB color of the first pixel
+	 */
+	private int color;
+
+	/**
+	 * Are the alpha statistics gathered?
+	 */
+	private boolean alphaScanned = false;
+
+	/**
+	 * Bounds of all pixels which aren't fully transparent (empty if there are none)
+	 */
+	private Rectangle opaqueBounds;
+
+	/**
+	 * Scan the image for a solid color
+	 *
+	 * @param bi the image
+	 */
+	public ImageStatistics(BufferedImage bi)
+	{
+		image = bi;
+		width = bi.getWidth();
+		height = bi.getHeight();
+
+		findRasterData();
+
+		if(width == 0 || height == 0) {
+			solid = false;
+			return;
+		}
+
+		int[] row = new int[width];
+		readRow(0, row);
+		color = row[0];
+		solid = true;
+
+		for(int y = 0; y < height && solid; y++)
+		{
+			readRow(y, row);
+			for(int x = 0; x < width; x++)
+			{
+				if(row[x] != color) {
+					// second color, no need to look any further
+					solid = false;
+					break;
+				}
+			}
+		}
+
+		if(solid) {
+			// the alpha statistics follow from the color
+			opaqueBounds = color >>> 24 == 0 ? new Rectangle() : new Rectangle(0, 0, width, height);
+			alphaScanned = true;
+		}
+	}
+
+	/**
+	 * Look for a raster layout that can be read directly, other images are read
+	 * through getRGB()
+	 */
+	private void findRasterData()
+	{
+		WritableRaster raster = image.getRaster();
+
+		if(raster.getParent() != null || raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0) {
+			return;
+		}
+
+		SampleModel sm = raster.getSampleModel();
+		DataBuffer db = raster.getDataBuffer();
+		int type = image.getType();
+
+		if((type == BufferedImage.TYPE_INT_ARGB || type == BufferedImage.TYPE_INT_RGB)
+				&& sm instanceof SinglePixelPackedSampleModel && db instanceof DataBufferInt) {
+			intData = ((DataBufferInt) db).getData();
+			intOffset = db.getOffset();
+			intStride = ((SinglePixelPackedSampleModel) sm).getScanlineStride();
+			alphaBits = type == BufferedImage.TYPE_INT_RGB ? 0xff000000 : 0;
+		}
+		else if(sm instanceof BandedSampleModel && db instanceof DataBufferByte
+				&& image.getColorModel() instanceof ComponentColorModel
+				&& image.getColorModel().getColorSpace().isCS_sRGB()
+				&& !image.getColorModel().isAlphaPremultiplied()
+				&& (sm.getNumBands() == 3 || (sm.getNumBands() == 4 && image.getColorModel().hasAlpha()))) {
+			BandedSampleModel bsm = (BandedSampleModel) sm;
+			byte[][] banks = ((DataBufferByte) db).getBankData();
+			int[] bankIndices = bsm.getBankIndices();
+			bandData = new byte[sm.getNumBands()][];
+			bandOffsets = new int[sm.getNumBands()];
+			for(int b = 0; b < bandData.length; b++)
+			{
+				bandData[b] = banks[bankIndices[b]];
+				bandOffsets[b] = bsm.getBandOffsets()[b] + db.getOffsets()[bankIndices[b]];
+			}
+			bandStride = bsm.getScanlineStride();
+		}
+	}
+
+	/**
+	 * Read a row of ARGB pixels, the same values as getRGB() returns
+	 *
+	 * @param y the row
+	 * @param row receives the pixels
+	 */
+	public void readRow(int y, int[] row)
+	{
+		if(intData != null) {
+			int start = intOffset + y * intStride;
+			for(int x = 0; x < width; x++)
+			{
+				row[x] = intData[start + x] | alphaBits;
+			}
+		}
+		else if(bandData != null) {
+			int start = y * bandStride;
+			byte[] r = bandData[0];
+			byte[] g = bandData[1];
+			byte[] b = bandData[2];
+			int ri = bandOffsets[0] + start;
+			int gi = bandOffsets[1] + start;
+			int bi = bandOffsets[2] + start;
+			if(bandData.length == 4) {
+				byte[] a = bandData[3];
+				int ai = bandOffsets[3] + start;
+				for(int x = 0; x < width; x++)
+				{
+					row[x] = (a[ai + x] & 0xff) << 24 | (r[ri + x] & 0xff) << 16 | (g[gi + x] & 0xff) << 8 | (b[bi + x] & 0xff);
+				}
+			}
+			else {
+				for(int x = 0; x < width; x++)
+				{
+					row[x] = 0xff000000 | (r[ri + x] & 0xff) << 16 | (g[gi + x] & 0xff) << 8 | (b[bi + x] & 0xff);
+				}
+			}
+		}
+		else {
+			image.getRGB(0, y, width, 1, row, 0, width);
+		}
+	}
+
+	/**
+	 * Gather the alpha statistics in one pass
+	 */
+	private void scanAlpha()
+	{
+		if(alphaScanned) {
+			return;
+		}
+		alphaScanned = true;
+
+		int left = width, top = height, right = -1, bottom = -1;
+		int[] row = new int[width];
+
+		for(int y = 0; y < height; y++)
+		{
+			readRow(y, row);
+			for(int x = 0; x < width; x++)
+			{
+				if(row[x] >>> 24 != 0) {
+					if(x < left) { left = x; }
+					if(x > right) { right = x; }
+					if(y < top) { top = y; }
+					bottom = y;
+				}
+			}
+		}
+
+		opaqueBounds = right == -1 ? new Rectangle() : new Rectangle(left, top, right - left + 1, bottom - top + 1);
+	}
+
+	/**
+	 * Get the width of the image
+	 *
+	 * @return width
+	 */
+	public int getWidth()
+	{
+		return width;
+	}
+
+	/**
+	 * Get the height of the image
+	 *
+	 * @return height
+	 */
+	public int getHeight()
+	{
+		return height;
+	}
+
+	/**
+	 * Is the image one solid color?
+	 *
+	 * @return true on a solid color
+	 */
+	public boolean isSolid()
+	{
+		return solid;
+	}
+
+	/**
+	 * Get the ARGB color of the first pixel, the color of a solid image
+	 *
+	 * @return color
+	 */
+	public int getColor()
+	{
+		return color;
+	}
+
+	/**
+	 * Get the bounds of all pixels which are not fully transparent
+	 *
+	 * @return bounds, empty if the image is fully transparent
+	 */
+	public Rectangle getOpaqueBounds()
+	{
+		scanAlpha();
+		return opaqueBounds;
+	}
+}
@@ -6,6 +6,7 @@ import java.util.LinkedList;
 import java.util.StringTokenizer;
 import java.util.regex.*;
 import psd.model.*;
+import psd.parser.PsdFileParser;
 import psd.parser.layer.LayerType;
 
 /**
@@ -25,6 +26,11 @@ public class Parser {
 	 */
 	private static String output;
 	
+	/**
+	 * Stores the images of the document
+	 */
+	private static AssetStore assetStore;
+	
 	/**
 	 * Holds the document
 	 */
@@ -47,6 +53,7 @@ public class Parser {
 		}
 		
 		output = outputPath;		
+		assetStore = new AssetStore(output);
 		
 		if(!psd_file.exists()) {
 			throw new Exception("Read error: File '" + path + "' doesn't exist!");
@@ -54,9 +61,46 @@ public class Parser {
 		
 		document = new Document();
 		
-		// parse the PS file
-		Psd parsedPSD = new Psd(psd_file);
+		// parse the PS file, no buffer pool: the decoded channels stay in use as the
+		// banks of the banded layer images until the conversion is done
+		PsdFileParser psdParser = new PsdFileParser();
+		
+		// the merged image of the whole file isn't used
+		psdParser.setSkipMergedImage(true);
+		
+		// the tree is built and the layer images are analyzed while the file is read
+		StylePipeline pipeline = new StylePipeline(Runtime.getRuntime().availableProcessors()) {
+			protected Element buildTree(Psd psd) throws Exception
+			{
+				return buildDocument(psd);
+			}
+		};
+		new Psd(psd_file, psdParser, pipeline);
+		
+		pipeline.buildStyle();
 		
+		// the background images are encoded while the style is built
+		assetStore.join();
+		
+		// group identical blocks and collapse shorthands
+		document.optimizeStylesheet();
+		
+		BufferedWriter html = new BufferedWriter(new FileWriter(output + "index.html"));
+		
+		document.print(html);
+		
+		html.close();
+	}
+	
+	/**
+	 * Builds the element tree and reads the configuration
+	 * 
+	 * @param parsedPSD the file
+	 * @return the body
+	 * @throws Exception
+	 */
+	private Element buildDocument(Psd parsedPSD) throws Exception
+	{
 		// element top <body>
 		Element body = null;
 		
@@ -76,13 +120,7 @@ public class Parser {
 			document.setConfiguration(new Configuration());
 		}
 		
-		body.recursiveBuildStyle();
-		
-		BufferedWriter html = new BufferedWriter(new FileWriter(output + "index.html"));
-		
-		html.write(document.print());
-		
-		html.close();
+		return body;
 	}
 	
 	/**
@@ -184,4 +222,14 @@ public class Parser {
 		return output;
 	}
 	
+	/**
+	 * Gets the store for the images of the document
+	 * 
+	 * @return the asset store
+	 */
+	public static AssetStore getAssetStore()
+	{
+		return assetStore;
+	}
+	
 }
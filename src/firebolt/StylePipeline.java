@@ -0,0 +1,137 @@
+package firebolt;
+
+import java.util.HashMap;
+import java.util.concurrent.*;
+
+import psd.model.*;
+import psd.parser.header.Header;
+
+/**
+ * Runs the conversion in overlapping stages while the file is read. The element
+ * tree is built as soon as the layer records are known, the background of an
+ * element is analyzed on a pool of threads as soon as the pixels of its layer
+ * are read, and the background images are encoded by the asset store. The
+ * style is built in document order afterwards, only waiting for backgrounds
+ * which aren't done yet.
+ *
+ * @author Alex Jeensma
+ */
+public abstract class StylePipeline implements PsdParseHandler
+{
+	/**
+	 * Analyzes the backgrounds, a full queue makes the reading thread analyze
+	 */
+	private ThreadPoolExecutor analyzers;
+
+	/**
+	 * The element of every layer in the tree
+	 */
+	private HashMap<Layer,Element> elements = new HashMap<Layer,Element>();
+
+	/**
+	 * Top element of the tree
+	 */
+	private Element body;
+
+	/**
+	 * Why the tree couldn't be built, thrown again by buildStyle()
+	 */
+	private Exception error;
+
+	/**
+	 * Create a new pipeline
+	 *
+	 * @param threads number of backgrounds analyzed at the same time
+	 */
+	public StylePipeline(int threads)
+	{
+		analyzers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(threads * 2), AssetStore.daemonThreads(), new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+
+	/**
+	 * Build the element tree from the layer tree
+	 *
+	 * @param psd the file, without layer pixels yet
+	 * @return the top element
+	 * @throws Exception
+	 */
+	protected abstract Element buildTree(Psd psd) throws Exception;
+
+	public void headerLoaded(Header header)
+	{
+	}
+
+	public void layerLoaded(Layer layer)
+	{
+	}
+
+	public void layersLoaded(Psd psd)
+	{
+		// every layer image is only needed once when building the style
+		psd.setReleaseCompressedData(true);
+
+		// the layer images are only read, no need to interleave the channels
+		psd.setBandedImages(true);
+
+		try
+		{
+			body = buildTree(psd);
+			addElements(body);
+		}
+		catch(Exception e)
+		{
+			error = e;
+		}
+	}
+
+	/**
+	 * Remember the layer of the element and its children
+	 *
+	 * @param e the element
+	 */
+	private void addElements(Element e)
+	{
+		elements.put(e.getLayer(), e);
+
+		for(Element child : e.getChildren())
+		{
+			addElements(child);
+		}
+	}
+
+	public void layerPixelsLoaded(Layer layer)
+	{
+		final Element e = elements.get(layer);
+
+		// layers outside the tree (configuration) have no background
+		if(e != null) {
+			analyzers.execute(new Runnable() {
+				public void run()
+				{
+					e.analyzeBackground();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Build the style of the tree once the file is read
+	 *
+	 * @return the top element
+	 * @throws Exception when the tree couldn't be built
+	 */
+	public Element buildStyle() throws Exception
+	{
+		// queued backgrounds are still analyzed, buildStyle() waits for them or takes them over
+		analyzers.shutdown();
+
+		if(error != null) {
+			throw error;
+		}
+
+		body.recursiveBuildStyle();
+
+		return body;
+	}
+}
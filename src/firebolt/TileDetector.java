@@ -0,0 +1,187 @@
+package firebolt;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Detects images which repeat horizontally, vertically or both, like 1 pixel
+ * strips stretched over a header or small patterns. The rows and columns are
+ * hashed in one pass, the shortest period of the hashes gives the tile size
+ * which is then checked pixel by pixel.
+ *
+ * @author Alex Jeensma
+ */
+public class TileDetector
+{
+	/**
+	 * Tiles have to be at most this part of the image to be worth it
+	 */
+	private static final int MIN_REDUCTION = 2;
+
+	private ImageStatistics stats;
+
+	private int width;
+
+	private int height;
+
+	/**
+	 * Size of the tile, equal to the image size if it doesn't repeat
+	 */
+	private int tileWidth;
+
+	private int tileHeight;
+
+	/**
+	 * Look for a repeating tile in the image
+	 *
+	 * @param stats statistics of the image, used to read its pixels
+	 */
+	public TileDetector(ImageStatistics stats)
+	{
+		this.stats = stats;
+		width = stats.getWidth();
+		height = stats.getHeight();
+		tileWidth = width;
+		tileHeight = height;
+
+		if(width == 0 || height == 0) {
+			return;
+		}
+
+		long[] rowHashes = new long[height];
+		long[] columnHashes = new long[width];
+		int[] row = new int[width];
+
+		for(int y = 0; y < height; y++)
+		{
+			stats.readRow(y, row);
+			long hash = 17;
+			for(int x = 0; x < width; x++)
+			{
+				hash = hash * 1000003 + row[x];
+				columnHashes[x] = columnHashes[x] * 1000003 + row[x];
+			}
+			rowHashes[y] = hash;
+		}
+
+		int periodX = period(columnHashes);
+		int periodY = period(rowHashes);
+
+		if((long) periodX * periodY * MIN_REDUCTION > (long) width * height) {
+			return;
+		}
+
+		if(verify(periodX, periodY)) {
+			tileWidth = periodX;
+			tileHeight = periodY;
+		}
+	}
+
+	/**
+	 * Shortest period of a sequence: the smallest p for which every element
+	 * equals the one p places before it (prefix function)
+	 *
+	 * @param sequence the hashes
+	 * @return period, the sequence length if there is none
+	 */
+	private static int period(long[] sequence)
+	{
+		int n = sequence.length;
+		int[] prefix = new int[n];
+		for(int i = 1; i < n; i++)
+		{
+			int k = prefix[i - 1];
+			while(k > 0 && sequence[i] != sequence[k])
+			{
+				k = prefix[k - 1];
+			}
+			if(sequence[i] == sequence[k]) {
+				k++;
+			}
+			prefix[i] = k;
+		}
+		return n - prefix[n - 1];
+	}
+
+	/**
+	 * Check that every pixel equals the pixel at the same place in the tile
+	 *
+	 * @return true if the image is made of the tile
+	 */
+	private boolean verify(int periodX, int periodY)
+	{
+		// rows of the tile are only kept if the image repeats vertically
+		int[][] tileRows = periodY < height ? new int[periodY][width] : null;
+		int[] row = new int[width];
+
+		for(int y = 0; y < height; y++)
+		{
+			int[] current = y < periodY && tileRows != null ? tileRows[y] : row;
+			stats.readRow(y, current);
+
+			for(int x = periodX; x < width; x++)
+			{
+				if(current[x] != current[x - periodX]) {
+					return false;
+				}
+			}
+
+			if(y >= periodY && tileRows != null) {
+				int[] tileRow = tileRows[y % periodY];
+				for(int x = 0; x < periodX; x++)
+				{
+					if(row[x] != tileRow[x]) {
+						return false;
+					}
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Does the image repeat?
+	 *
+	 * @return true if the tile is smaller than the image
+	 */
+	public boolean isTileable()
+	{
+		return tileWidth < width || tileHeight < height;
+	}
+
+	/**
+	 * Get the CSS background-repeat value for the tile
+	 *
+	 * @return repeat-x, repeat-y or repeat
+	 */
+	public String getRepeat()
+	{
+		if(tileHeight == height) {
+			return "repeat-x";
+		}
+		if(tileWidth == width) {
+			return "repeat-y";
+		}
+		return "repeat";
+	}
+
+	/**
+	 * Get the smallest tile of the image
+	 *
+	 * @param bi the image
+	 * @return the top left tile, sharing its pixels with the image
+	 */
+	public BufferedImage getTile(BufferedImage bi)
+	{
+		return bi.getSubimage(0, 0, tileWidth, tileHeight);
+	}
+
+	public int getTileWidth()
+	{
+		return tileWidth;
+	}
+
+	public int getTileHeight()
+	{
+		return tileHeight;
+	}
+}
@@ -1,5 +1,6 @@
 package firebolt.css;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
@@ -26,21 +27,27 @@ public class Stylesheet {
 		selectors.add(s);
 	}
 	
+	/**
+	 * Merge, shorten and group the selectors, see StylesheetOptimizer. The
+	 * selectors added before aren't changed, but they aren't printed anymore.
+	 */
+	public void optimize()
+	{
+		selectors = new StylesheetOptimizer(selectors).getSelectors();
+	}
+	
 	/**
 	 * Print the Stylesheet
 	 * 
-	 * @return printed string
+	 * @param out receives the CSS
+	 * @throws IOException
 	 */
-	public String printRecursive()
+	public void printRecursive(Appendable out) throws IOException
 	{
-		String CSSString = "";
-		
 		for(StylesheetSelector s : selectors) 
 		{
-			CSSString += s.print();
+			s.print(out);
 		}
-		
-		return CSSString;
 	}
 	
 	/**
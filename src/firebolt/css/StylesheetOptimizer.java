@@ -0,0 +1,308 @@
+package firebolt.css;
+
+import java.util.*;
+import java.util.Map.Entry;
+
+/**
+ * Makes the stylesheet smaller without changing what it does. Blocks of the
+ * same selector are merged, longhand properties are collapsed into their
+ * shorthand, zero lengths lose their unit and selectors with identical
+ * properties are grouped into one comma separated block.
+ *
+ * The selectors are ids and tag names, two different selectors never have the
+ * same specificity on one element, so moving a block doesn't change the cascade.
+ *
+ * @author Alex Jeensma
+ */
+public class StylesheetOptimizer {
+
+	/**
+	 * Sides of the box shorthands, in CSS order
+	 */
+	private static final String[] SIDES = {"top", "right", "bottom", "left"};
+
+	/**
+	 * Shorthands of the box model
+	 */
+	private static final String[] BOXES = {"margin", "padding"};
+
+	/**
+	 * The optimized selectors (in order)
+	 */
+	private LinkedList<StylesheetSelector> selectors = new LinkedList<StylesheetSelector>();
+
+	/**
+	 * Optimize a list of selectors
+	 *
+	 * @param input the selectors, they aren't changed
+	 */
+	public StylesheetOptimizer(List<StylesheetSelector> input)
+	{
+		// merge the blocks of the same selector, later properties win
+		LinkedHashMap<String,LinkedHashMap<String,String>> blocks = new LinkedHashMap<String,LinkedHashMap<String,String>>();
+
+		for(StylesheetSelector s : input)
+		{
+			if(s.getSelector().length() == 0 || s.getProperties().size() == 0) {
+				continue;
+			}
+
+			LinkedHashMap<String,String> block = blocks.get(s.getSelector());
+			if(block == null) {
+				block = new LinkedHashMap<String,String>();
+				blocks.put(s.getSelector(), block);
+			}
+
+			for(Entry<String,String> property : s.getProperties().entrySet())
+			{
+				override(block, property.getKey(), property.getValue());
+			}
+		}
+
+		// group the selectors with the same properties, at the place of the first one
+		LinkedHashMap<LinkedHashMap<String,String>,StringBuilder> groups = new LinkedHashMap<LinkedHashMap<String,String>,StringBuilder>();
+
+		for(Entry<String,LinkedHashMap<String,String>> entry : blocks.entrySet())
+		{
+			LinkedHashMap<String,String> block = shorten(entry.getValue());
+
+			StringBuilder group = groups.get(block);
+			if(group == null) {
+				groups.put(block, new StringBuilder(entry.getKey()));
+			}
+			else {
+				group.append(", ").append(entry.getKey());
+			}
+		}
+
+		for(Entry<LinkedHashMap<String,String>,StringBuilder> group : groups.entrySet())
+		{
+			StylesheetSelector s = new StylesheetSelector(group.getValue().toString());
+			for(Entry<String,String> property : group.getKey().entrySet())
+			{
+				s.addProperty(property.getKey(), property.getValue());
+			}
+			selectors.add(s);
+		}
+	}
+
+	/**
+	 * Set a property of a block, a shorthand also replaces the longhands it covers
+	 *
+	 * @param block the properties
+	 * @param property property name
+	 * @param value property value
+	 */
+	private static void override(LinkedHashMap<String,String> block, String property, String value)
+	{
+		for(String box : BOXES)
+		{
+			if(property.equals(box)) {
+				for(String side : SIDES)
+				{
+					block.remove(box + "-" + side);
+				}
+			}
+		}
+
+		if(property.equals("background")) {
+			block.remove("background-repeat");
+		}
+
+		block.put(property, value);
+	}
+
+	/**
+	 * Collapse the longhands and shorten the values of a block
+	 *
+	 * @param block the properties
+	 * @return the shortened properties
+	 */
+	private static LinkedHashMap<String,String> shorten(LinkedHashMap<String,String> block)
+	{
+		LinkedHashMap<String,String> shortened = new LinkedHashMap<String,String>();
+
+		for(Entry<String,String> property : block.entrySet())
+		{
+			shortened.put(property.getKey(), shortenValue(property.getValue()));
+		}
+
+		for(String box : BOXES)
+		{
+			collapseBox(shortened, box);
+		}
+
+		collapseBackground(shortened);
+
+		return shortened;
+	}
+
+	/**
+	 * Drop the unit of zero lengths, values with functions like url() are left alone
+	 *
+	 * @param value the value
+	 * @return shortened value
+	 */
+	private static String shortenValue(String value)
+	{
+		if(value.indexOf('(') != -1) {
+			return value;
+		}
+
+		String[] parts = value.trim().split("\\s+");
+		StringBuilder shortened = new StringBuilder();
+
+		for(String part : parts)
+		{
+			if(shortened.length() > 0) {
+				shortened.append(' ');
+			}
+			shortened.append(part.equals("0px") || part.equals("-0px") ? "0" : part);
+		}
+
+		return shortened.toString();
+	}
+
+	/**
+	 * Replace the side properties of margin or padding by the shorthand. This
+	 * only happens when all four sides are known, a shorthand in the same block
+	 * is refined by its longhands.
+	 *
+	 * @param block the properties
+	 * @param box margin or padding
+	 */
+	private static void collapseBox(LinkedHashMap<String,String> block, String box)
+	{
+		String[] values = new String[4];
+
+		if(block.containsKey(box)) {
+			values = expandBox(block.get(box));
+			if(values == null) {
+				return;
+			}
+		}
+
+		boolean hasLonghand = false;
+
+		for(int i = 0; i < 4; i++)
+		{
+			String side = block.get(box + "-" + SIDES[i]);
+			if(side != null) {
+				if(side.indexOf(' ') != -1 || side.indexOf('!') != -1) {
+					return;
+				}
+				values[i] = side;
+				hasLonghand = true;
+			}
+			else if(values[i] == null) {
+				// a side isn't set, the shorthand would reset it
+				return;
+			}
+		}
+
+		if(hasLonghand) {
+			// the shorthand takes the place of its first property
+			LinkedHashMap<String,String> collapsed = new LinkedHashMap<String,String>();
+			for(Entry<String,String> property : block.entrySet())
+			{
+				String key = property.getKey();
+				if(key.equals(box) || key.startsWith(box + "-")) {
+					if(!collapsed.containsKey(box)) {
+						collapsed.put(box, null);
+					}
+				}
+				else {
+					collapsed.put(key, property.getValue());
+				}
+			}
+			block.clear();
+			block.putAll(collapsed);
+		}
+
+		block.put(box, compactBox(values));
+	}
+
+	/**
+	 * Expand a margin or padding shorthand into its four sides
+	 *
+	 * @param value the shorthand value
+	 * @return top, right, bottom and left, null if the value can't be expanded
+	 */
+	private static String[] expandBox(String value)
+	{
+		if(value.indexOf('!') != -1) {
+			return null;
+		}
+
+		String[] parts = value.trim().split("\\s+");
+
+		switch(parts.length)
+		{
+			case 1:
+				return new String[] {parts[0], parts[0], parts[0], parts[0]};
+			case 2:
+				return new String[] {parts[0], parts[1], parts[0], parts[1]};
+			case 3:
+				return new String[] {parts[0], parts[1], parts[2], parts[1]};
+			case 4:
+				return parts;
+			default:
+				return null;
+		}
+	}
+
+	/**
+	 * Write the four sides with as few values as possible
+	 *
+	 * @param values top, right, bottom and left
+	 * @return the shorthand value
+	 */
+	private static String compactBox(String[] values)
+	{
+		if(!values[3].equals(values[1])) {
+			return values[0] + " " + values[1] + " " + values[2] + " " + values[3];
+		}
+		if(!values[2].equals(values[0])) {
+			return values[0] + " " + values[1] + " " + values[2];
+		}
+		if(!values[1].equals(values[0])) {
+			return values[0] + " " + values[1];
+		}
+		return values[0];
+	}
+
+	/**
+	 * Put background-repeat in the background shorthand, which would otherwise
+	 * reset it depending on the order of the properties
+	 *
+	 * @param block the properties
+	 */
+	private static void collapseBackground(LinkedHashMap<String,String> block)
+	{
+		String background = block.get("background");
+		String repeat = block.get("background-repeat");
+
+		if(background == null || repeat == null || background.contains("repeat")
+				|| background.indexOf('!') != -1 || repeat.indexOf('!') != -1
+				|| background.equals("inherit") || background.equals("initial")) {
+			return;
+		}
+
+		block.remove("background-repeat");
+
+		// repeat is what the shorthand sets anyway
+		if(!repeat.equals("repeat")) {
+			block.put("background", background + " " + repeat);
+		}
+	}
+
+	/**
+	 * Get the optimized selectors
+	 *
+	 * @return selectors
+	 */
+	public LinkedList<StylesheetSelector> getSelectors()
+	{
+		return selectors;
+	}
+}
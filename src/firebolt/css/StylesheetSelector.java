@@ -1,5 +1,6 @@
 package firebolt.css;
 
+import java.io.IOException;
 import java.util.*;
 import java.util.Map.Entry;
 
@@ -14,7 +15,7 @@ public class StylesheetSelector {
 	private String selector;
 	
 	/**
-	 * Holds the CSS properties for this selector
+	 * Holds the CSS properties for this selector (in order)
 	 */
 	private HashMap<String,String> properties;
 	
@@ -26,20 +27,21 @@ public class StylesheetSelector {
 	public StylesheetSelector(String s)
 	{
 		selector = s;
-		properties = new HashMap<String,String>();
+		properties = new LinkedHashMap<String,String>();
 	}
 	
 	/**
 	 * Print the stylesheet selector and it's properties
 	 *  
-	 * @return 
+	 * @param out receives the CSS
+	 * @throws IOException
 	 */
-	public String print()
+	public void print(Appendable out) throws IOException
 	{
 		// no selector or no properties? no need for selector
-		if(selector.length() == 0 || properties.size() == 0) { return ""; }
+		if(selector.length() == 0 || properties.size() == 0) { return; }
 		
-		String CSS = "\t" + selector + " {\n";
+		out.append('\t').append(selector).append(" {\n");
 		
 		Iterator<Entry<String, String>> entries = properties.entrySet().iterator();
 		
@@ -47,10 +49,10 @@ public class StylesheetSelector {
 			Map.Entry<String,String> entry = (Map.Entry<String,String>)entries.next();
 		    String key = (String)entry.getKey();
 		    String value = (String)entry.getValue();
-		    CSS += "\t\t"+key+": "+value+";\n";
+		    out.append("\t\t").append(key).append(": ").append(value).append(";\n");
 		}
 		
-		return CSS + "\n\t}\n\n";
+		out.append("\n\t}\n\n");
 	}
 	
 	/**
@@ -64,6 +66,26 @@ public class StylesheetSelector {
 		return properties.get(property);
 	}
 	
+	/**
+	 * Get the full selector
+	 * 
+	 * @return selector
+	 */
+	public String getSelector()
+	{
+		return selector;
+	}
+	
+	/**
+	 * Get all the properties
+	 * 
+	 * @return property => value
+	 */
+	public HashMap<String,String> getProperties()
+	{
+		return properties;
+	}
+	
 	/**
 	 * Add a CSS property
 	 * 
@@ -24,8 +24,11 @@ import psd.parser.layer.additional.LayerSectionDividerHandler;
 import psd.parser.layer.additional.LayerSectionDividerParser;
 import psd.parser.layer.additional.LayerUnicodeNameHandler;
 import psd.parser.layer.additional.LayerUnicodeNameParser;
+import psd.util.BufferPool;
 import psd.util.BufferedImageBuilder;
+import psd.util.RleChannelAnalyzer;
 
+import java.awt.Rectangle;
 import java.awt.image.*;
 import java.util.*;
 
@@ -42,11 +45,22 @@ public class Layer implements LayersContainer {
     private String name;
 
     private BufferedImage image;
+    private List<Channel> channels;
+    private boolean imageDecoded = false;
+    private boolean releaseCompressedData = false;
+    private boolean bandedImage = false;
+    private final BufferPool bufferPool;
+    private LayerImageHandler imageHandler;
+    private PsdParseHandler parseHandler;
+    // RLE analysis of the red, green, blue and alpha channels, null entries for missing channels
+    private RleChannelAnalyzer[] channelAnalysis;
+    private boolean channelsAnalyzed = false;
     private LayerType type = LayerType.NORMAL;
 
     private ArrayList<Layer> layers = new ArrayList<Layer>();
 
     public Layer(LayerParser parser) {
+        bufferPool = parser.getBufferPool();
         parser.setHandler(new LayerHandler() {
             @Override
             public void boundsLoaded(int left, int top, int right, int bottom) {
@@ -85,8 +99,14 @@ public class Layer implements LayersContainer {
 
             @Override
             public void channelsLoaded(List<Channel> channels) {
-                BufferedImageBuilder imageBuilder = new BufferedImageBuilder(channels, getWidth(), getHeight());
-                image = imageBuilder.makeImage();
+                // decoded on first call to getImage()
+                Layer.this.channels = channels;
+                if (parseHandler != null) {
+                    parseHandler.layerPixelsLoaded(Layer.this);
+                }
+                if (imageHandler != null) {
+                    streamImage();
+                }
             }
 
             @Override
@@ -129,10 +149,168 @@ public class Layer implements LayersContainer {
         return layers.size();
     }
 
-    public BufferedImage getImage() {
+    /**
+     * Decodes the layer pixels from the compressed channel data on first access.
+     */
+    public synchronized BufferedImage getImage() {
+        if (!imageDecoded && channels != null) {
+            BufferedImageBuilder imageBuilder = new BufferedImageBuilder(channels, getWidth(), getHeight());
+            imageBuilder.setBufferPool(bufferPool);
+            if (alpha != 255) {
+                imageBuilder.setOpacity(alpha);
+            }
+            image = bandedImage ? imageBuilder.makeBandedImage() : imageBuilder.makeImage();
+            imageDecoded = true;
+            if (releaseCompressedData) {
+                releaseChannels();
+            }
+        }
         return image;
     }
 
+    /**
+     * ARGB color of a layer which has a single color, found from the RLE runs
+     * of its channels without decoding them. Null if the layer has more than
+     * one color, or if that can't be told without decoding because a channel
+     * isn't RLE compressed or the compressed data was released.
+     */
+    public synchronized Integer getUniformColor() {
+        if (!analyzeChannels()) {
+            return null;
+        }
+        int color = 0;
+        int[] shifts = { 16, 8, 0, 24 };
+        for (int i = 0; i < 4; i++) {
+            RleChannelAnalyzer analyzer = channelAnalysis[i];
+            if (analyzer == null) {
+                color |= (i == 3 ? 255 : 0) << shifts[i];
+            } else if (analyzer.isUniform()) {
+                color |= analyzer.getValue() << shifts[i];
+            } else {
+                return null;
+            }
+        }
+        if (alpha != 255) {
+            // the same as getImage(), which applies the opacity
+            int a = ((color >>> 24) * alpha + 127) / 255;
+            color = a << 24 | color & 0xffffff;
+        }
+        return color;
+    }
+
+    /**
+     * Bounds of the pixels which aren't fully transparent relative to the layer,
+     * found from the RLE runs of the alpha channel. Empty for a fully transparent
+     * layer, null if it can't be told without decoding.
+     */
+    public synchronized Rectangle getContentBounds() {
+        if (!analyzeChannels()) {
+            return null;
+        }
+        RleChannelAnalyzer alphaAnalyzer = channelAnalysis[3];
+        if (alphaAnalyzer == null) {
+            return new Rectangle(0, 0, getWidth(), getHeight());
+        }
+        Rectangle bounds = alphaAnalyzer.getNonZeroBounds();
+        return bounds != null ? bounds : new Rectangle();
+    }
+
+    private boolean analyzeChannels() {
+        if (channelsAnalyzed) {
+            return channelAnalysis != null;
+        }
+        if (channels == null || getWidth() <= 0 || getHeight() <= 0) {
+            return false;
+        }
+        channelsAnalyzed = true;
+        RleChannelAnalyzer[] analysis = new RleChannelAnalyzer[4];
+        int[] channelIds = { Channel.RED, Channel.GREEN, Channel.BLUE, Channel.ALPHA };
+        for (int i = 0; i < 4; i++) {
+            for (Channel channel : channels) {
+                if (channel.getId() == channelIds[i] && channel.getCompressedData() != null) {
+                    if (channel.getDepth() != 8) {
+                        return false;
+                    }
+                    analysis[i] = RleChannelAnalyzer.analyze(channel.getCompressedData(), getWidth(), getHeight(),
+                            channel.isLargeDocument());
+                    if (analysis[i] == null) {
+                        return false;
+                    }
+                }
+            }
+        }
+        channelAnalysis = analysis;
+        return true;
+    }
+
+    /**
+     * When set, the compressed channel data of this layer and its children is
+     * dropped once the image is decoded, so it can't be decoded again.
+     */
+    public synchronized void setReleaseCompressedData(boolean releaseCompressedData) {
+        this.releaseCompressedData = releaseCompressedData;
+        if (releaseCompressedData && imageDecoded && channels != null) {
+            releaseChannels();
+        }
+        for (Layer layer : layers) {
+            layer.setReleaseCompressedData(releaseCompressedData);
+        }
+    }
+
+    /**
+     * When set, the image is decoded as soon as its channels are parsed and
+     * passed to the handler. The image and the compressed data are released
+     * afterwards, so getImage() returns null.
+     */
+    public void setImageHandler(LayerImageHandler imageHandler) {
+        this.imageHandler = imageHandler;
+    }
+
+    void setParseHandler(PsdParseHandler parseHandler) {
+        this.parseHandler = parseHandler;
+    }
+
+    private synchronized void streamImage() {
+        releaseCompressedData = true;
+        BufferedImage streamed = getImage();
+        try {
+            imageHandler.layerImageLoaded(this, streamed);
+        } finally {
+            dispose();
+            imageDecoded = true;
+        }
+    }
+
+    /**
+     * When set, images of this layer and its children are decoded as a read-only
+     * view over the channel data, see BufferedImageBuilder.makeBandedImage().
+     */
+    public synchronized void setBandedImage(boolean bandedImage) {
+        this.bandedImage = bandedImage;
+        for (Layer layer : layers) {
+            layer.setBandedImage(bandedImage);
+        }
+    }
+
+    /**
+     * Drops the decoded image and gives its buffer back to the pool. The image
+     * is decoded again on the next getImage() if the compressed data is kept.
+     */
+    public synchronized void dispose() {
+        if (bufferPool != null) {
+            bufferPool.release(image);
+        }
+        image = null;
+        imageDecoded = false;
+    }
+
+    private void releaseChannels() {
+        for (Channel channel : channels) {
+            channel.setCompressedData(null);
+        }
+        channels = null;
+    }
+
     public int getX() {
         return left;
     }
@@ -0,0 +1,11 @@
+package psd.model;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Receives every layer image while the file is parsed, null for empty layers.
+ * The image is only valid during the call, it is released right after.
+ */
+public interface LayerImageHandler {
+    public void layerImageLoaded(Layer layer, BufferedImage image);
+}
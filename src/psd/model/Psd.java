@@ -21,28 +21,118 @@ package psd.model;
 import java.awt.image.BufferedImage;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import psd.parser.*;
 import psd.parser.header.*;
 import psd.parser.imagedata.ImageDataSectionHandler;
+import psd.parser.imagedata.ImageDataSectionParser;
 import psd.parser.layer.*;
+import psd.util.BufferPool;
 import psd.util.BufferedImageBuilder;
 
 public class Psd implements LayersContainer {
     private Header header;
     private List<Layer> layers = new ArrayList<Layer>();
+    private List<Layer> allLayers = new ArrayList<Layer>();
+    private boolean layersBuilt = false;
     private BufferedImage image;
+    private boolean imageDecoded = false;
+    private File file;
+    private long mergedImageOffset = -1;
+    private boolean mergedAlpha = false;
     private String name;
+    private BufferPool bufferPool;
 
     public Psd(File psdFile) throws IOException {
+        this(psdFile, new PsdFileParser());
+    }
+
+    /**
+     * Parses the file with a preconfigured parser, e.g. one which skips the
+     * image data. Layer and merged images are null in that case, the merged
+     * image also when the parser skips it.
+     */
+    public Psd(File psdFile, PsdFileParser parser) throws IOException {
+        this(psdFile, parser, null, null);
+    }
+
+    /**
+     * Streaming parse: every layer image is decoded as soon as its channel data
+     * is read and passed to the image handler, then released together with the
+     * compressed data. Layer images are null afterwards.
+     */
+    public Psd(File psdFile, PsdFileParser parser, LayerImageHandler imageHandler) throws IOException {
+        this(psdFile, parser, imageHandler, null);
+    }
+
+    /**
+     * Parses the file and reports its header and layers to the parse handler
+     * while they are read. Layer images are decoded lazily as usual.
+     */
+    public Psd(File psdFile, PsdFileParser parser, PsdParseHandler parseHandler) throws IOException {
+        this(psdFile, parser, null, parseHandler);
+    }
+
+    private Psd(File psdFile, PsdFileParser parser, LayerImageHandler imageHandler, PsdParseHandler parseHandler)
+            throws IOException {
+        file = psdFile;
         name = psdFile.getName();
-        final byte[][] channels = new byte[3][];
+        PsdInputStream stream = new PsdInputStream(psdFile);
+        try {
+            parse(stream, parser, imageHandler, parseHandler);
+        } finally {
+            stream.close();
+        }
+        if (!parser.isSkipImageData() && !parser.isSkipMergedImage()) {
+            mergedImageOffset = parser.getMergedImageOffset();
+        }
+    }
+
+    /**
+     * Streaming parse of a stream which is read once, see
+     * Psd(File, PsdFileParser, LayerImageHandler). Memory use is bounded by the
+     * largest layer. The merged image can't be read again later, so it is
+     * decoded right away unless the parser skips it.
+     */
+    public Psd(InputStream inputStream, String name, PsdFileParser parser, LayerImageHandler imageHandler)
+            throws IOException {
+        this(inputStream, name, parser, imageHandler, null);
+    }
+
+    /**
+     * Parse of a stream which is read once, reported to the parse handler as
+     * in Psd(File, PsdFileParser, PsdParseHandler). The compressed data of
+     * every layer is kept until its image is decoded.
+     */
+    public Psd(InputStream inputStream, String name, PsdFileParser parser, PsdParseHandler parseHandler)
+            throws IOException {
+        this(inputStream, name, parser, null, parseHandler);
+    }
+
+    private Psd(InputStream inputStream, String name, PsdFileParser parser, LayerImageHandler imageHandler,
+            PsdParseHandler parseHandler) throws IOException {
+        this.name = name;
+        PsdInputStream stream = new PsdInputStream(inputStream);
+        parse(stream, parser, imageHandler, parseHandler);
+        if (!parser.isSkipImageData() && !parser.isSkipMergedImage()) {
+            image = decodeMergedImage(stream);
+        }
+        imageDecoded = true;
+    }
+
+    private void parse(PsdInputStream stream, PsdFileParser parser, final LayerImageHandler imageHandler,
+            final PsdParseHandler parseHandler) throws IOException {
+        bufferPool = parser.getBufferPool();
 
-        PsdFileParser parser = new PsdFileParser();
         parser.getHeaderSectionParser().setHandler(new HeaderSectionHandler() {
             @Override
             public void headerLoaded(Header header) {
                 Psd.this.header = header;
+                if (parseHandler != null) {
+                    parseHandler.headerLoaded(header);
+                }
             }
         });
 
@@ -50,29 +140,88 @@ public class Psd implements LayersContainer {
         parser.getLayersSectionParser().setHandler(new LayersSectionHandler() {
             @Override
             public void createLayer(LayerParser parser) {
-                fullLayersList.add(new Layer(parser));
+                Layer layer = new Layer(parser);
+                layer.setImageHandler(imageHandler);
+                layer.setParseHandler(parseHandler);
+                fullLayersList.add(layer);
+            }
+
+            @Override
+            public void layerParsed(LayerParser parser) {
+                if (parseHandler != null) {
+                    parseHandler.layerLoaded(fullLayersList.get(fullLayersList.size() - 1));
+                }
+            }
+
+            @Override
+            public void layerRecordsParsed() {
+                // the tree is complete before the channel data
+                buildLayers(fullLayersList);
+                if (parseHandler != null) {
+                    parseHandler.layersLoaded(Psd.this);
+                }
             }
         });
 
-        parser.getImageDataSectionParser().setHandler(new ImageDataSectionHandler() {
+        // the merged image is decoded separately
+        boolean skipMergedImage = parser.isSkipMergedImage();
+        parser.setSkipMergedImage(true);
+        try {
+            parser.parse(stream);
+        } finally {
+            parser.setSkipMergedImage(skipMergedImage);
+        }
+        mergedAlpha = parser.getLayersSectionParser().hasMergedAlpha();
+
+        if (!layersBuilt) {
+            buildLayers(fullLayersList);
+            if (parseHandler != null) {
+                parseHandler.layersLoaded(this);
+            }
+        }
+    }
+
+    private void buildLayers(List<Layer> fullLayersList) {
+        allLayers = fullLayersList;
+        layers = makeLayersHierarchy(fullLayersList);
+        layersBuilt = true;
+    }
+
+    private BufferedImage decodeMergedImage(PsdInputStream stream) throws IOException {
+        // channels by number, alpha follows the color channels
+        final byte[][] channels = new byte[header.getChannelsCount()][];
+        ImageDataSectionParser parser = new ImageDataSectionParser(header);
+        parser.setBufferPool(bufferPool);
+        parser.setHandler(new ImageDataSectionHandler() {
+            private int channelNumber = 0;
+
             @Override
             public void channelLoaded(int channelId, byte[] channelData) {
-                if (channelId >= 0 && channelId < 3) {
-                    channels[channelId] = channelData;
-                }
+                channels[channelNumber++] = channelData;
             }
         });
-        
-        BufferedInputStream stream = new BufferedInputStream(new FileInputStream(psdFile));
+
         parser.parse(stream);
-        stream.close();
 
-        layers = makeLayersHierarchy(fullLayersList);
+        int colorChannels = header.getColorMode() == ColorMode.GRAYSCALE ? 1 : 3;
+        byte[][] rgb = new byte[3][];
+        for (int i = 0; i < 3; i++) {
+            int channelNumber = colorChannels == 1 ? 0 : i;
+            rgb[i] = channelNumber < channels.length ? channels[channelNumber] : null;
+        }
+        // other extra channels are saved selections or spot colors
+        byte[] alpha = mergedAlpha && channels.length > colorChannels ? channels[colorChannels] : null;
+        BufferedImageBuilder imageBuilder = new BufferedImageBuilder(
+                new byte[][] { rgb[0], rgb[1], rgb[2], alpha }, header.getWidth(), header.getHeight());
+        imageBuilder.setBufferPool(bufferPool);
+        BufferedImage result = imageBuilder.makeImage();
 
-        if (parser.getHeaderSectionParser().getHeader().getColorMode() == ColorMode.GRAYSCALE) {
-            channels[1] = channels[2] = channels[0];
+        if (bufferPool != null) {
+            for (byte[] channel : channels) {
+                bufferPool.release(channel);
+            }
         }
-        image = new BufferedImageBuilder(channels, header.getWidth(), header.getHeight()).makeImage();
+        return result;
     }
 
     private List<Layer> makeLayersHierarchy(List<Layer> layers) {
@@ -122,10 +271,111 @@ public class Psd implements LayersContainer {
         return header.getHeight();
     }
     
-    public BufferedImage getImage() {
+    /**
+     * Merged image of the file with its transparency, decoded from the file
+     * on first access. Null if the parser skipped it.
+     */
+    public synchronized BufferedImage getImage() {
+        if (!imageDecoded && mergedImageOffset != -1) {
+            imageDecoded = true;
+            try {
+                PsdInputStream stream = new PsdInputStream(file);
+                try {
+                    stream.seek(mergedImageOffset);
+                    image = decodeMergedImage(stream);
+                } finally {
+                    stream.close();
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("can't read the merged image of " + name, e);
+            }
+        }
         return image;
     }
 
+    /**
+     * Decodes all layer images up front on a fork-join pool with the given
+     * number of threads. Layers with a single color are left to decode lazily,
+     * their color is known from getUniformColor() without decoding. Layers
+     * which fail to decode are reported once the others are done, in one
+     * exception with the other failures suppressed.
+     * Every decoded image stays in memory with its layer until dispose(), so
+     * for large files decoding a layer when it's needed and disposing it
+     * afterwards (Layer.dispose()) uses far less memory.
+     */
+    @SuppressWarnings("serial")
+    public void decodeImages(int threads) {
+        final List<RuntimeException> failures = Collections.synchronizedList(new ArrayList<RuntimeException>());
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+                    for (final Layer layer : allLayers) {
+                        tasks.add(new RecursiveAction() {
+                            @Override
+                            protected void compute() {
+                                try {
+                                    if (layer.getUniformColor() == null) {
+                                        layer.getImage();
+                                    }
+                                } catch (RuntimeException e) {
+                                    failures.add(new RuntimeException("can't decode the image of layer " + layer, e));
+                                }
+                            }
+                        });
+                    }
+                    invokeAll(tasks);
+                }
+            });
+        } finally {
+            pool.shutdown();
+        }
+
+        if (!failures.isEmpty()) {
+            RuntimeException failure = failures.get(0);
+            for (int i = 1; i < failures.size(); i++) {
+                failure.addSuppressed(failures.get(i));
+            }
+            throw failure;
+        }
+    }
+
+    /**
+     * Gives the merged image and all decoded layer images back to the buffer
+     * pool. They can't be used afterwards.
+     */
+    public synchronized void dispose() {
+        if (bufferPool != null) {
+            bufferPool.release(image);
+        }
+        image = null;
+        for (Layer layer : allLayers) {
+            layer.dispose();
+        }
+    }
+
+    /**
+     * Lets every layer drop its compressed channel data once its image has
+     * been decoded.
+     */
+    public void setReleaseCompressedData(boolean releaseCompressedData) {
+        for (Layer layer : layers) {
+            layer.setReleaseCompressedData(releaseCompressedData);
+        }
+    }
+
+    /**
+     * Lets every layer decode its image as a read-only banded view instead of
+     * an interleaved ARGB copy. Has to be set before the images are decoded.
+     */
+    public void setBandedImages(boolean bandedImages) {
+        for (Layer layer : layers) {
+            layer.setBandedImage(bandedImages);
+        }
+    }
+
     @Override
     public Layer getLayer(int index) {
         return layers.get(index);
@@ -0,0 +1,53 @@
+package psd.model;
+
+import psd.parser.header.Header;
+
+/**
+ * Progress of a parse published by PsdPublisher.
+ */
+public class PsdEvent {
+
+    public enum Type {
+        // the file header, see getHeader()
+        HEADER,
+        // a layer record, the layer has no parent or children yet
+        LAYER,
+        // all layer records were read and the tree is complete, see getPsd()
+        LAYERS,
+        // the channel data of a layer was read, its image can be decoded
+        LAYER_PIXELS
+    }
+
+    private final Type type;
+    private final Header header;
+    private final Layer layer;
+    private final Psd psd;
+
+    PsdEvent(Type type, Header header, Layer layer, Psd psd) {
+        this.type = type;
+        this.header = header;
+        this.layer = layer;
+        this.psd = psd;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public Header getHeader() {
+        return header;
+    }
+
+    public Layer getLayer() {
+        return layer;
+    }
+
+    public Psd getPsd() {
+        return psd;
+    }
+
+    @Override
+    public String toString() {
+        return type + (layer != null ? " " + layer : "");
+    }
+}
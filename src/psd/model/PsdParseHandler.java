@@ -0,0 +1,19 @@
+package psd.model;
+
+import psd.parser.header.Header;
+
+/**
+ * Follows a parse as it goes through the file. Layers are reported in file
+ * order, first their records, then the whole layer tree, then the layers one
+ * by one as their channel data is read.
+ */
+public interface PsdParseHandler {
+    public void headerLoaded(Header header);
+
+    public void layerLoaded(Layer layer);
+
+    public void layersLoaded(Psd psd);
+
+    // the image can be decoded with layer.getImage() from here on
+    public void layerPixelsLoaded(Layer layer);
+}
@@ -0,0 +1,86 @@
+package psd.model;
+
+import java.io.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.SubmissionPublisher;
+
+import psd.parser.PsdFileParser;
+import psd.parser.header.Header;
+
+/**
+ * Publishes the header, the layer records, the layer tree and the layers with
+ * their channel data while a file is parsed, so subscribers can start working
+ * before the whole file is read. Events are delivered asynchronously; the
+ * parse blocks when a subscriber falls behind by more than its buffer.
+ * A publisher parses one file, subscribers have to subscribe before parse()
+ * is called.
+ */
+public class PsdPublisher implements Flow.Publisher<PsdEvent> {
+
+    private final SubmissionPublisher<PsdEvent> publisher;
+
+    public PsdPublisher() {
+        this(ForkJoinPool.commonPool(), Flow.defaultBufferSize());
+    }
+
+    public PsdPublisher(Executor executor, int maxBufferCapacity) {
+        publisher = new SubmissionPublisher<PsdEvent>(executor, maxBufferCapacity);
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super PsdEvent> subscriber) {
+        publisher.subscribe(subscriber);
+    }
+
+    public Psd parse(File file, PsdFileParser parser) throws IOException {
+        try {
+            Psd psd = new Psd(file, parser, new PublishingHandler());
+            publisher.close();
+            return psd;
+        } catch (IOException e) {
+            publisher.closeExceptionally(e);
+            throw e;
+        } catch (RuntimeException e) {
+            publisher.closeExceptionally(e);
+            throw e;
+        }
+    }
+
+    public Psd parse(InputStream inputStream, String name, PsdFileParser parser) throws IOException {
+        try {
+            Psd psd = new Psd(inputStream, name, parser, new PublishingHandler());
+            publisher.close();
+            return psd;
+        } catch (IOException e) {
+            publisher.closeExceptionally(e);
+            throw e;
+        } catch (RuntimeException e) {
+            publisher.closeExceptionally(e);
+            throw e;
+        }
+    }
+
+    private class PublishingHandler implements PsdParseHandler {
+        @Override
+        public void headerLoaded(Header header) {
+            publisher.submit(new PsdEvent(PsdEvent.Type.HEADER, header, null, null));
+        }
+
+        @Override
+        public void layerLoaded(Layer layer) {
+            publisher.submit(new PsdEvent(PsdEvent.Type.LAYER, null, layer, null));
+        }
+
+        @Override
+        public void layersLoaded(Psd psd) {
+            publisher.submit(new PsdEvent(PsdEvent.Type.LAYERS, null, null, psd));
+        }
+
+        @Override
+        public void layerPixelsLoaded(Layer layer) {
+            publisher.submit(new PsdEvent(PsdEvent.Type.LAYER_PIXELS, null, layer, null));
+        }
+    }
+}
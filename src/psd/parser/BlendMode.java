@@ -27,9 +27,11 @@ public enum BlendMode {
     PASS_THROUGH("pass");
 
     private String name;
+    private int fourCC;
 
     private BlendMode(String name) {
         this.name = name;
+        this.fourCC = PsdInputStream.fourCC(name);
     }
 
     public static BlendMode getByName(String name) {
@@ -41,4 +43,13 @@ public enum BlendMode {
         return null;
     }
 
+    public static BlendMode getByFourCC(int fourCC) {
+        for (BlendMode mode : values()) {
+            if (mode.fourCC == fourCC) {
+                return mode;
+            }
+        }
+        return null;
+    }
+
 }
@@ -6,6 +6,7 @@ import psd.parser.header.HeaderSectionParser;
 import psd.parser.imagedata.ImageDataSectionParser;
 import psd.parser.imageresource.ImageResourceSectionParser;
 import psd.parser.layer.LayersSectionParser;
+import psd.util.BufferPool;
 
 public class PsdFileParser {
     private HeaderSectionParser headerParser;
@@ -13,12 +14,16 @@ public class PsdFileParser {
     private ImageResourceSectionParser imageResourceSectionParser;
     private LayersSectionParser layersSectionParser;
     private ImageDataSectionParser imageDataSectionParser;
+    private boolean skipImageData = false;
+    private boolean skipMergedImage = false;
+    private long mergedImageOffset = -1;
+    private BufferPool bufferPool;
 
     public PsdFileParser() {
         headerParser = new HeaderSectionParser();
         colorModeSectionParser = new ColorModeSectionParser();
         imageResourceSectionParser = new ImageResourceSectionParser();
-        layersSectionParser = new LayersSectionParser();
+        layersSectionParser = new LayersSectionParser(headerParser.getHeader());
         imageDataSectionParser = new ImageDataSectionParser(headerParser.getHeader());
     }
 
@@ -38,12 +43,74 @@ public class PsdFileParser {
         return imageDataSectionParser;
     }
 
+    /**
+     * When set, only the header, resources and layer records are parsed. Layer
+     * channel data and the merged image are skipped without being read.
+     */
+    public void setSkipImageData(boolean skipImageData) {
+        this.skipImageData = skipImageData;
+        layersSectionParser.setSkipImageData(skipImageData);
+    }
+
+    public boolean isSkipImageData() {
+        return skipImageData;
+    }
+
+    /**
+     * When set, the merged image at the end of the file isn't decoded. Its
+     * offset is still recorded, so it can be parsed later on its own.
+     */
+    public void setSkipMergedImage(boolean skipMergedImage) {
+        this.skipMergedImage = skipMergedImage;
+    }
+
+    public boolean isSkipMergedImage() {
+        return skipMergedImage;
+    }
+
+    /**
+     * Position of the image data section in the last parsed file, -1 if it
+     * wasn't reached.
+     */
+    public long getMergedImageOffset() {
+        return mergedImageOffset;
+    }
+
+    /**
+     * Decoded channels and images of the parsed file are taken from this pool.
+     */
+    public void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+        layersSectionParser.setBufferPool(bufferPool);
+        imageDataSectionParser.setBufferPool(bufferPool);
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    public void parse(File file) throws IOException {
+        PsdInputStream stream = new PsdInputStream(file);
+        try {
+            parse(stream);
+        } finally {
+            stream.close();
+        }
+    }
+
     public void parse(InputStream inputStream) throws IOException {
-        PsdInputStream stream = new PsdInputStream(inputStream);
+        parse(new PsdInputStream(inputStream));
+    }
+
+    public void parse(PsdInputStream stream) throws IOException {
+        mergedImageOffset = -1;
         headerParser.parse(stream);
         colorModeSectionParser.parse(stream);
         imageResourceSectionParser.parse(stream);
         layersSectionParser.parse(stream);
-        imageDataSectionParser.parse(stream);
+        mergedImageOffset = stream.getPos();
+        if (!skipImageData && !skipMergedImage) {
+            imageDataSectionParser.parse(stream);
+        }
     }
 }
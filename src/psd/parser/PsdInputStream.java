@@ -19,48 +19,204 @@
 package psd.parser;
 
 import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 
 public class PsdInputStream extends InputStream {
 
-    private int pos;
-    private int markPos;
+    // a single mapping can't be larger than this, bigger files are mapped in windows
+    private static final long MAX_MAPPED_WINDOW = Integer.MAX_VALUE;
+
+    // read-ahead window used when reading from a plain InputStream
+    private static final int BUFFER_SIZE = 8192;
+
+    private long pos;
+    private long markPos;
+    private int markLimit = -1;
     private final InputStream in;
 
+    private final FileChannel channel;
+    private final long channelSize;
+
+    // mapped window or read-ahead window, always positioned at pos
+    private ByteBuffer buffer;
+    // stream position of buffer index 0
+    private long bufferStart;
+
     public PsdInputStream(InputStream in) {
         this.in = in;
+        this.channel = null;
+        this.channelSize = 0;
+        pos = 0;
+        markPos = 0;
+    }
+
+    /**
+     * Opens the file as a memory mapped, random access stream.
+     */
+    public PsdInputStream(File file) throws IOException {
+        this(FileChannel.open(file.toPath(), StandardOpenOption.READ));
+    }
+
+    public PsdInputStream(FileChannel channel) throws IOException {
+        this.in = null;
+        this.channel = channel;
+        this.channelSize = channel.size();
         pos = 0;
         markPos = 0;
     }
 
+    /**
+     * Converts a four character code to the value returned by readFourCC().
+     */
+    public static int fourCC(String code) {
+        return (code.charAt(0) & 0xff) << 24 | (code.charAt(1) & 0xff) << 16 | (code.charAt(2) & 0xff) << 8
+                | (code.charAt(3) & 0xff);
+    }
+
+    public static String fourCCToString(int code) {
+        char[] chars = { (char) ((code >>> 24) & 0xff), (char) ((code >>> 16) & 0xff), (char) ((code >>> 8) & 0xff),
+                (char) (code & 0xff) };
+        return new String(chars);
+    }
+
     @Override
     public int available() throws IOException {
-        return in.available();
+        if (channel != null) {
+            return (int) Math.min(Integer.MAX_VALUE, channelSize - pos);
+        }
+        return buffered() + in.available();
     }
 
     @Override
     public void close() throws IOException {
-        in.close();
+        buffer = null;
+        if (channel != null) {
+            channel.close();
+        } else {
+            in.close();
+        }
     }
 
     @Override
     public synchronized void mark(int readlimit) {
-        in.mark(readlimit);
         markPos = pos;
+        markLimit = readlimit;
     }
 
     @Override
     public synchronized void reset() throws IOException {
-        in.reset();
+        if (markLimit < 0) {
+            throw new IOException("mark not set");
+        }
+        if (channel != null) {
+            seek(markPos);
+            return;
+        }
+        if (buffer == null || markPos < bufferStart) {
+            throw new IOException("mark invalidated");
+        }
+        buffer.position((int) (markPos - bufferStart));
         pos = markPos;
     }
 
     @Override
     public boolean markSupported() {
-        return in.markSupported();
+        return true;
+    }
+
+    public boolean isSeekable() {
+        return channel != null;
     }
-    
+
+    /**
+     * Moves to an absolute position. Streams which are not backed by a file
+     * can only move forward.
+     */
+    public void seek(long newPos) throws IOException {
+        if (channel == null) {
+            if (newPos < pos) {
+                throw new IOException("can't seek backwards in a non-seekable stream");
+            }
+            long n = newPos - pos;
+            while (n > 0) {
+                long skipped = skip(n);
+                if (skipped <= 0) {
+                    throw new EOFException();
+                }
+                n -= skipped;
+            }
+            return;
+        }
+        if (newPos < 0 || newPos > channelSize) {
+            throw new EOFException();
+        }
+        long delta = newPos - pos;
+        if (buffer != null && buffer.position() + delta >= 0 && buffer.position() + delta <= buffer.limit()) {
+            buffer.position((int) (buffer.position() + delta));
+        } else {
+            buffer = null;
+        }
+        pos = newPos;
+    }
+
+    private int buffered() {
+        return buffer == null ? 0 : buffer.remaining();
+    }
+
+    /**
+     * Makes sure the buffer holds at least n bytes from the current position.
+     * Returns false when the input has less than n bytes left.
+     */
+    private boolean fill(int n) throws IOException {
+        if (buffer != null && buffer.remaining() >= n) {
+            return true;
+        }
+        if (channel != null) {
+            if (channelSize - pos < n) {
+                return false;
+            }
+            long length = Math.min(MAX_MAPPED_WINDOW, channelSize - pos);
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, pos, length);
+            bufferStart = pos;
+            return true;
+        }
+
+        // keep the bytes after the mark while it is still valid
+        long keepFrom = pos;
+        if (markLimit >= 0 && markPos >= bufferStart && pos - markPos <= markLimit) {
+            keepFrom = markPos;
+        }
+        int kept = (int) (pos - keepFrom) + buffered();
+        int capacity = Math.max(BUFFER_SIZE, Math.max(n + (int) (pos - keepFrom), markLimit >= 0 ? markLimit : 0));
+        ByteBuffer target = buffer;
+        if (target == null || target.capacity() < capacity) {
+            target = ByteBuffer.allocate(capacity);
+        }
+        if (kept > 0) {
+            System.arraycopy(buffer.array(), (int) (keepFrom - bufferStart), target.array(), 0, kept);
+        }
+        buffer = target;
+        bufferStart = keepFrom;
+        int limit = kept;
+        int needed = (int) (pos - keepFrom) + n;
+        byte[] array = buffer.array();
+        while (limit < needed) {
+            int count = in.read(array, limit, array.length - limit);
+            if (count < 0) {
+                break;
+            }
+            limit += count;
+        }
+        buffer.limit(limit);
+        buffer.position((int) (pos - keepFrom));
+        return limit >= needed;
+    }
+
     public void readFully(byte[] b) throws IOException {
         readFully(b, 0, b.length);
     }
@@ -79,33 +235,64 @@ public class PsdInputStream extends InputStream {
 
     @Override
     public int read(byte[] b, int off, int len) throws IOException {
-        int res = in.read(b, off, len);
-        if (res != -1) {
-            pos += res;
+        if (len == 0) {
+            return 0;
+        }
+        int n = 0;
+        if (channel == null && buffered() < len && len >= BUFFER_SIZE && markLimit < 0) {
+            // big reads bypass the read-ahead window
+            n = buffered();
+            if (n > 0) {
+                buffer.get(b, off, n);
+                pos += n;
+            }
+            int res = in.read(b, off + n, len - n);
+            if (res != -1) {
+                pos += res;
+                n += res;
+            }
+            return n == 0 ? -1 : n;
         }
-        return res;
+        while (n < len && fill(1)) {
+            int count = Math.min(len - n, buffer.remaining());
+            buffer.get(b, off + n, count);
+            pos += count;
+            n += count;
+        }
+        return n == 0 ? -1 : n;
     }
 
     @Override
     public int read(byte[] b) throws IOException {
-        int res = in.read(b);
-        if (res != -1) {
-            pos += res;
-        }
-        return res;
+        return read(b, 0, b.length);
     }
 
     @Override
     public int read() throws IOException {
-        int res = in.read();
-        if (res != -1) {
-            pos++;
+        if (!fill(1)) {
+            return -1;
         }
-        return res;
+        pos++;
+        return buffer.get() & 0xff;
     }
 
     @Override
     public long skip(long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        if (channel != null) {
+            long skip = Math.min(n, channelSize - pos);
+            seek(pos + skip);
+            return skip;
+        }
+        int inBuffer = (int) Math.min(n, buffered());
+        if (inBuffer > 0) {
+            buffer.position(buffer.position() + inBuffer);
+            pos += inBuffer;
+            return inBuffer;
+        }
+        markLimit = -1;
         long skip = in.skip(n);
         pos += skip;
         return skip;
@@ -114,10 +301,17 @@ public class PsdInputStream extends InputStream {
     public String readString(int len) throws IOException {
         // read string of specified length
         byte[] bytes = new byte[len];
-        read(bytes);
+        readFully(bytes);
         return new String(bytes, "ISO-8859-1");
     }
 
+    /**
+     * Reads a four character code as a big-endian int, see fourCC(String).
+     */
+    public int readFourCC() throws IOException {
+        return readInt();
+    }
+
     public String readPsdString() throws IOException {
         int size = readInt();
         if (size == 0) {
@@ -139,68 +333,55 @@ public class PsdInputStream extends InputStream {
     }
 
     public byte readByte() throws IOException {
-        int ch = read();
-        if (ch < 0) {
+        if (!fill(1)) {
             throw new EOFException();
         }
-        return (byte) (ch);
+        pos++;
+        return buffer.get();
     }
 
     public short readShort() throws IOException {
-        int ch1 = read();
-        int ch2 = read();
-        if ((ch1 | ch2) < 0) {
+        if (!fill(2)) {
             throw new EOFException();
         }
-        return (short) ((ch1 << 8) + (ch2 << 0));
+        pos += 2;
+        return buffer.getShort();
     }
 
     public int readInt() throws IOException {
-        int ch1 = read();
-        int ch2 = read();
-        int ch3 = read();
-        int ch4 = read();
-        if ((ch1 | ch2 | ch3 | ch4) < 0) {
+        if (!fill(4)) {
             throw new EOFException();
         }
-        return ((ch1 << 24) + (ch2 << 16) + (ch3 << 8) + (ch4 << 0));
+        pos += 4;
+        return buffer.getInt();
     }
 
     public boolean readBoolean() throws IOException {
-        int ch = read();
-        if (ch < 0) {
-            throw new EOFException();
-        }
-        return (ch != 0);
+        return readByte() != 0;
     }
 
     public final long readLong() throws IOException {
-        int c1 = read();
-        int c2 = read();
-        int c3 = read();
-        int c4 = read();
-        int c5 = read();
-        int c6 = read();
-        int c7 = read();
-        int c8 = read();
-        return (((long) c1 << 56) + ((long) (c2 & 255) << 48) + ((long) (c3 & 255) << 40) + ((long) (c4 & 255) << 32)
-                + ((long) (c5 & 255) << 24) + ((c6 & 255) << 16) + ((c7 & 255) << 8) + (c8 & 255));
+        if (!fill(8)) {
+            throw new EOFException();
+        }
+        pos += 8;
+        return buffer.getLong();
     }
 
     public final double readDouble() throws IOException {
         return Double.longBitsToDouble(readLong());
     }
 
-    public int skipBytes(int n) throws IOException {
-        int total = 0;
-        int cur;
-        while ((total < n) && ((cur = (int) skip(n - total)) > 0)) {
+    public long skipBytes(long n) throws IOException {
+        long total = 0;
+        long cur;
+        while ((total < n) && ((cur = skip(n - total)) > 0)) {
             total += cur;
         }
         return total;
     }
 
-    public int getPos() {
+    public long getPos() {
         return pos;
     }
 
@@ -3,12 +3,24 @@ package psd.parser.header;
 import psd.parser.ColorMode;
 
 public class Header {
+	int version;
 	int channelsCount;
 	int width;
 	int height;
 	int depth;
 	ColorMode colorMode;
 	
+	public int getVersion() {
+		return version;
+	}
+	
+	/**
+	 * PSB (large document format) files use 64-bit section lengths
+	 */
+	public boolean isLargeDocument() {
+		return version == 2;
+	}
+	
 	public int getChannelsCount() {
 		return channelsCount;
 	}
@@ -9,6 +9,7 @@ public class HeaderSectionParser {
 
     private static final String FILE_SIGNATURE = "8BPS";
     private static final int FILE_VERSION = 1;
+    private static final int LARGE_FILE_VERSION = 2;
 
     private HeaderSectionHandler handler;
     private Header header = new Header();
@@ -24,9 +25,10 @@ public class HeaderSectionParser {
         }
 
         int ver = psdStream.readShort();
-        if (ver != FILE_VERSION) {
+        if (ver != FILE_VERSION && ver != LARGE_FILE_VERSION) {
             throw new IOException("file version error ");
         }
+        header.version = ver;
 
         psdStream.skipBytes(6); // reserved
 
@@ -1,15 +1,23 @@
 package psd.parser.imagedata;
 
 import java.io.IOException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
+import psd.parser.ColorMode;
 import psd.parser.PsdInputStream;
 import psd.parser.header.Header;
-import psd.util.RleLineUncompressor;
+import psd.util.BufferPool;
+import psd.util.ChannelUncompressor;
+import psd.util.ParallelRleUncompressor;
+import psd.util.SampleConverter;
+import psd.util.ZipUncompressor;
 
 public class ImageDataSectionParser {
 
     private final Header header;
     private ImageDataSectionHandler handler;
+    private BufferPool bufferPool;
 
     public ImageDataSectionParser(Header header) {
         this.header = header;
@@ -18,39 +26,124 @@ public class ImageDataSectionParser {
     public void setHandler(ImageDataSectionHandler handler) {
         this.handler = handler;
     }
+
+    /**
+     * Channel data passed to the handler is taken from the pool and can be
+     * longer than width * height. The handler is responsible for releasing it.
+     */
+    public void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    private byte[] allocate(int size) {
+        return bufferPool != null ? bufferPool.getBytes(size) : new byte[size];
+    }
+
+    private void release(byte[] buffer) {
+        if (bufferPool != null) {
+            bufferPool.release(buffer);
+        }
+    }
     
     public void parse(PsdInputStream stream) throws IOException {
-        boolean rle = stream.readShort() == 1;
-        short[] lineLengths = null;
+        int compression = stream.readShort();
+        boolean rle = compression == ChannelUncompressor.RLE;
+        boolean zip = compression == ChannelUncompressor.ZIP_WITHOUT_PREDICTION
+                || compression == ChannelUncompressor.ZIP_WITH_PREDICTION;
+        int[] lineLengths = null;
+        int[] lineOffsets = null;
         int height = header.getHeight();
+        if ((long) header.getWidth() * height > Integer.MAX_VALUE) {
+            throw new IOException("image data too large: " + header.getWidth() + "x" + height);
+        }
         if (rle) {
             int nLines = height * header.getChannelsCount();
-            lineLengths = new short[nLines];
+            lineLengths = new int[nLines];
 
+            // PSB files store 4-byte line lengths
+            boolean largeDocument = header.isLargeDocument();
             for (int i = 0; i < nLines; i++) {
-                lineLengths[i] = stream.readShort();
+                lineLengths[i] = largeDocument ? stream.readInt() : stream.readShort() & 0xffff;
+            }
+            lineOffsets = ParallelRleUncompressor.lineOffsets(lineLengths, height);
+        }
+
+        // the zip stream runs over all channels up to the end of the file
+        Inflater inflater = null;
+        PsdInputStream zipStream = null;
+        if (zip) {
+            inflater = ZipUncompressor.obtainInflater();
+            zipStream = new PsdInputStream(new InflaterInputStream(stream, inflater));
+        }
+
+        try {
+            parseChannels(stream, compression, zipStream, lineLengths, lineOffsets);
+        } finally {
+            if (inflater != null) {
+                ZipUncompressor.releaseInflater(inflater);
             }
         }
+    }
 
+    private void parseChannels(PsdInputStream stream, int compression, PsdInputStream zipStream, int[] lineLengths,
+            int[] lineOffsets) throws IOException {
+        int height = header.getHeight();
+        // the first channel after the color channels can be transparency
+        int alphaNumber = header.getColorMode() == ColorMode.GRAYSCALE ? 1 : 3;
         for (int channelNumber = 0; channelNumber < header.getChannelsCount(); channelNumber++) {
-            int channelId = channelNumber == 3 ? -1 : channelNumber;
+            int channelId = channelNumber == alphaNumber ? -1 : channelNumber;
             
             int width = header.getWidth();
-            byte[] data = new byte[width * height];
-            if (rle) {
-                byte[] s = new byte[width * 2];
-                int pos = 0;
+            int size = width * height;
+            byte[] data = allocate(size);
+            // deeper samples are converted to 8 bits a line at a time
+            SampleConverter converter = null;
+            byte[] line = null;
+            int lineSize = 0;
+            if (header.getDepth() != 8) {
+                converter = new SampleConverter(header.getDepth(), channelId == -1);
+                lineSize = width * converter.getBytesPerSample();
+                line = allocate(lineSize);
+            }
+            if (compression == ChannelUncompressor.RLE) {
+                // read the whole channel, then decode its lines in parallel
                 int lineIndex = channelNumber * height;
-                for (int i = 0; i < height; i++) {
-                    int len = lineLengths[lineIndex++];
-                    stream.readBytes(s, len);
-                    RleLineUncompressor.decodeRleLine(s, 0, len, data, pos);
-                    pos += width;
+                int lastLine = lineIndex + height - 1;
+                long length = height == 0 ? 0 : (long) lineOffsets[lastLine] + lineLengths[lastLine];
+                if (length > Integer.MAX_VALUE) {
+                    throw new IOException("channel data too large: " + length);
                 }
+                byte[] s = allocate((int) length);
+                stream.readFully(s, 0, (int) length);
+                ParallelRleUncompressor.decodeRleLines(s, lineOffsets, lineLengths, lineIndex, data, width, height,
+                        converter);
+                release(s);
 
+            } else if (zipStream != null) {
+                boolean prediction = compression == ChannelUncompressor.ZIP_WITH_PREDICTION;
+                if (converter == null) {
+                    zipStream.readFully(data, 0, size);
+                    if (prediction) {
+                        ZipUncompressor.undoPrediction(data, 0, width, height, 8);
+                    }
+                } else {
+                    for (int i = 0; i < height; i++) {
+                        zipStream.readFully(line, 0, lineSize);
+                        if (prediction) {
+                            ZipUncompressor.undoPrediction(line, 0, width, 1, header.getDepth());
+                        }
+                        converter.convertLine(line, 0, data, i * width, width);
+                    }
+                }
+            } else if (converter == null) {
+                stream.readFully(data, 0, size);
             } else {
-                stream.readFully(data);
+                for (int i = 0; i < height; i++) {
+                    stream.readFully(line, 0, lineSize);
+                    converter.convertLine(line, 0, data, i * width, width);
+                }
             }
+            release(line);
             
             if (handler != null) {
                 handler.channelLoaded(channelId, data);
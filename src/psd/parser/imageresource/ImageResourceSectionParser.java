@@ -6,7 +6,9 @@ import psd.parser.PsdInputStream;
 import psd.parser.object.PsdDescriptor;
 
 public class ImageResourceSectionParser {
-	private static final String PSD_TAG = "8BIM";
+	private static final int PSD_TAG = PsdInputStream.fourCC("8BIM");
+	private static final int MESA_TAG = PsdInputStream.fourCC("MeSa");
+	private static final int MANI_KEY = PsdInputStream.fourCC("mani");
 	private ImageResourceSectionHandler handler;
 
 	public void setHandler(ImageResourceSectionHandler handler) {
@@ -15,11 +17,11 @@ public class ImageResourceSectionParser {
 
 	public void parse(PsdInputStream stream) throws IOException {
 		int length = stream.readInt();
-		int pos = stream.getPos();
+		long pos = stream.getPos();
 		while (length > 0) {
-			String tag = stream.readString(4);
-			if (!tag.equals(PSD_TAG) && !tag.equals("MeSa")) {
-				throw new IOException("Format error: Invalid image resources section.: " + tag);
+			int tag = stream.readFourCC();
+			if (tag != PSD_TAG && tag != MESA_TAG) {
+				throw new IOException("Format error: Invalid image resources section.: " + PsdInputStream.fourCCToString(tag));
 			}
 			length -= 4;
 			int id = stream.readShort();
@@ -37,12 +39,12 @@ public class ImageResourceSectionParser {
 			if ((sizeOfData & 0x01) == 1)
 				sizeOfData++;
 			length -= sizeOfData;
-			int storePos = stream.getPos();
+			long storePos = stream.getPos();
 
 			// TODO FIXME Is id correct?
-			if (sizeOfData > 0 && tag.equals(PSD_TAG) && id >= 4000 && id < 5000) {
-				String key = stream.readString(4);
-				if (key.equals("mani")) {
+			if (sizeOfData > 0 && tag == PSD_TAG && id >= 4000 && id < 5000) {
+				int key = stream.readFourCC();
+				if (key == MANI_KEY) {
 					stream.skipBytes(12 + 12); // unknown data
 					PsdDescriptor descriptor = new PsdDescriptor(stream);
 					if (handler != null) {
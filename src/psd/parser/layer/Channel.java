@@ -21,6 +21,7 @@ package psd.parser.layer;
 import java.io.IOException;
 
 import psd.parser.PsdInputStream;
+import psd.parser.header.Header;
 
 public class Channel {
     public static final int MASK = -2;
@@ -30,12 +31,22 @@ public class Channel {
     public static final int BLUE = 2;
 
     private int id;
-    private int dataLength;
+    private long dataLength;
+    private boolean largeDocument;
+    private int depth = 8;
     private byte[] compressedData;
 
     public Channel(PsdInputStream stream) throws IOException {
+        this(stream, null);
+    }
+
+    public Channel(PsdInputStream stream, Header header) throws IOException {
+        if (header != null) {
+            largeDocument = header.isLargeDocument();
+            depth = header.getDepth();
+        }
         id = stream.readShort();
-        dataLength = stream.readInt();
+        dataLength = largeDocument ? stream.readLong() : stream.readInt() & 0xffffffffL;
     }
 
     public Channel(int id) {
@@ -46,10 +57,24 @@ public class Channel {
         return id;
     }
 
-    public int getDataLength() {
+    public long getDataLength() {
         return dataLength;
     }
 
+    /**
+     * Channels from PSB files store 4-byte RLE line lengths instead of 2
+     */
+    public boolean isLargeDocument() {
+        return largeDocument;
+    }
+
+    /**
+     * Bits per sample of the compressed data
+     */
+    public int getDepth() {
+        return depth;
+    }
+
     public void setCompressedData(byte[] data) {
         this.compressedData = data;
     }
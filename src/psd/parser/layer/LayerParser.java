@@ -5,22 +5,46 @@ import java.util.*;
 
 import psd.parser.BlendMode;
 import psd.parser.PsdInputStream;
+import psd.parser.header.Header;
+import psd.util.BufferPool;
 
 public class LayerParser {
 
+    static final int SIGNATURE = PsdInputStream.fourCC("8BIM");
+    static final int LARGE_SIGNATURE = PsdInputStream.fourCC("8B64");
+
+    // additional information blocks which have a 64-bit length in PSB files
+    static final Set<Integer> LARGE_LENGTH_KEYS = new HashSet<Integer>();
+    static {
+        for (String key : new String[] { "LMsk", "Lr16", "Lr32", "Layr", "Mt16", "Mt32", "Mtrn", "Alph", "FMsk",
+                "lnk2", "FEid", "FXid", "PxSD" }) {
+            LARGE_LENGTH_KEYS.add(PsdInputStream.fourCC(key));
+        }
+    }
+
+    private final Header header;
+    private final boolean largeDocument;
+
     private List<Channel> channels;
     private LayerHandler handler;
-    private Map<String, LayerAdditionalInformationParser> additionalInformationParsers;
+    private Map<Integer, LayerAdditionalInformationParser> additionalInformationParsers;
     private LayerAdditionalInformationParser defaultAdditionalInformationParser;
+    private BufferPool bufferPool;
 
     public LayerParser() {
+        this(null);
+    }
+
+    public LayerParser(Header header) {
+        this.header = header;
+        largeDocument = header != null && header.isLargeDocument();
         handler = null;
-        additionalInformationParsers = new HashMap<String, LayerAdditionalInformationParser>();
+        additionalInformationParsers = new HashMap<Integer, LayerAdditionalInformationParser>();
         defaultAdditionalInformationParser = null;
     }
 
     public void putAdditionalInformationParser(String tag, LayerAdditionalInformationParser parser) {
-        additionalInformationParsers.put(tag, parser);
+        additionalInformationParsers.put(PsdInputStream.fourCC(tag), parser);
     }
 
     public void setDefaultAdditionalInformationParser(LayerAdditionalInformationParser parser) {
@@ -31,13 +55,24 @@ public class LayerParser {
         this.handler = handler;
     }
 
+    public void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * Pool to decode the channels of this layer with, can be null
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
     public void parse(PsdInputStream stream) throws IOException {
         parseBounds(stream);
         parseChannelsInfo(stream);
 
-        String tag = stream.readString(4);
+        int tag = stream.readFourCC();
         
-        if (!tag.equals("8BIM")) {
+        if (tag != SIGNATURE) {
             throw new IOException("format error");
         }
         parseBlendMode(stream);
@@ -75,14 +110,14 @@ public class LayerParser {
         int channelsCount = stream.readShort();
         channels = new ArrayList<Channel>();
         for (int j = 0; j < channelsCount; j++) {
-            channels.add(new Channel(stream));
+            channels.add(new Channel(stream, header));
         }
     }
 
     private void parseBlendMode(PsdInputStream stream) throws IOException {
-        String blendMode = stream.readString(4);
+        int blendMode = stream.readFourCC();
         if (handler != null) {
-            handler.blendModeLoaded(BlendMode.getByName(blendMode));
+            handler.blendModeLoaded(BlendMode.getByFourCC(blendMode));
         }
     }
 
@@ -120,7 +155,7 @@ public class LayerParser {
 
     private void parseExtraData(PsdInputStream stream) throws IOException {
         int extraSize = stream.readInt();
-        int extraPos = stream.getPos();
+        long extraPos = stream.getPos();
 
         parseMaskAndAdjustmentData(stream);
         parseBlendingRangesData(stream);
@@ -170,7 +205,7 @@ public class LayerParser {
 
     private void parseBlendingRangesData(PsdInputStream stream) throws IOException {
         int size = stream.readInt();
-        int pos = stream.getPos();
+        long pos = stream.getPos();
         BlendingRanges ranges = new BlendingRanges();
 
         // Composite gray blend source. Contains 2 black values followed by 2
@@ -229,17 +264,22 @@ public class LayerParser {
         }
     }
 
-    private void parseAdditionalSections(PsdInputStream stream, int endPos) throws IOException {
+    private void parseAdditionalSections(PsdInputStream stream, long endPos) throws IOException {
         while (stream.getPos() < endPos) {
-            String tag = stream.readString(4);
-            if (!tag.equals("8BIM")) {
+            int signature = stream.readFourCC();
+            if (signature != SIGNATURE && signature != LARGE_SIGNATURE) {
                 throw new IOException("layer information signature error");
             }
-            tag = stream.readString(4);
+            int tag = stream.readFourCC();
 
-            int size = stream.readInt();
-            size = (size + 1) & ~0x01;
-            int prevPos = stream.getPos();
+            long size;
+            if (largeDocument && LARGE_LENGTH_KEYS.contains(tag)) {
+                size = stream.readLong();
+            } else {
+                size = stream.readInt() & 0xffffffffL;
+            }
+            size = (size + 1) & ~0x01L;
+            long prevPos = stream.getPos();
 
             LayerAdditionalInformationParser additionalParser = additionalInformationParsers.get(tag);
            
@@ -247,8 +287,8 @@ public class LayerParser {
                 additionalParser = defaultAdditionalInformationParser;
             }
 
-            if (additionalParser != null) {
-                additionalParser.parse(stream, tag, size);
+            if (additionalParser != null && size <= Integer.MAX_VALUE) {
+                additionalParser.parse(stream, PsdInputStream.fourCCToString(tag), (int) size);
             }
 
             stream.skipBytes(prevPos + size - stream.getPos());
@@ -257,7 +297,11 @@ public class LayerParser {
 
     public void parseImageSection(PsdInputStream stream) throws IOException {
         for (Channel channel : channels) {
-            byte[] data = new byte[channel.getDataLength()];
+            long length = channel.getDataLength();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("channel data too large: " + length);
+            }
+            byte[] data = new byte[(int) length];
             stream.readFully(data);
             channel.setCompressedData(data);
         }
@@ -265,4 +309,12 @@ public class LayerParser {
             handler.channelsLoaded(channels);
         }
     }
+
+    public void skipImageSection(PsdInputStream stream) throws IOException {
+        long length = 0;
+        for (Channel channel : channels) {
+            length += channel.getDataLength();
+        }
+        stream.skipBytes(length);
+    }
 }
@@ -2,4 +2,9 @@ package psd.parser.layer;
 
 public interface LayersSectionHandler {
     public void createLayer(LayerParser parser);
+
+    public void layerParsed(LayerParser parser);
+
+    // called after the last layer record, before the channel data
+    public void layerRecordsParsed();
 }
@@ -5,50 +5,142 @@ import java.util.ArrayList;
 import java.util.List;
 
 import psd.parser.*;
+import psd.parser.header.Header;
+import psd.util.BufferPool;
 
 public class LayersSectionParser {
 
+    private static final int LAYERS_16 = PsdInputStream.fourCC("Lr16");
+    private static final int LAYERS_32 = PsdInputStream.fourCC("Lr32");
+
+    private final Header header;
     private LayersSectionHandler handler;
+    private boolean skipImageData = false;
+    private BufferPool bufferPool;
+    private boolean mergedAlpha = false;
 
-    public LayersSectionParser() {
+    public LayersSectionParser(Header header) {
+        this.header = header;
     }
 
     public void setHandler(LayersSectionHandler handler) {
         this.handler = handler;
     }
 
+    public void setSkipImageData(boolean skipImageData) {
+        this.skipImageData = skipImageData;
+    }
+
+    public void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * True if the first extra channel of the merged image is its
+     * transparency, which the file marks with a negative layer count.
+     * Otherwise extra channels are saved selections or spot colors.
+     */
+    public boolean hasMergedAlpha() {
+        return mergedAlpha;
+    }
+
     public void parse(PsdInputStream stream) throws IOException {
-        // read layer header info
-        int length = stream.readInt();
-        int pos = stream.getPos();
+        mergedAlpha = false;
+
+        // read layer header info, PSB files use 64-bit lengths
+        boolean largeDocument = header.isLargeDocument();
+        long length = largeDocument ? stream.readLong() : stream.readInt() & 0xffffffffL;
+        long endPos = stream.getPos() + length;
 
         if (length > 0) {
-            int size = stream.readInt();
+            long size = largeDocument ? stream.readLong() : stream.readInt() & 0xffffffffL;
             if ((size & 0x01) != 0) {
                 size++;
             }
+            long infoEnd = stream.getPos() + size;
+            boolean layersParsed = false;
             if (size > 0) {
-                int layersCount = stream.readShort();
-                if (layersCount < 0) {
-                    layersCount = -layersCount;
-                }
-                List<LayerParser> parsers = new ArrayList<LayerParser>(layersCount);
-                for (int i = 0; i < layersCount; i++) {
-                    LayerParser layerParser = new LayerParser();
-                    parsers.add(layerParser);
-                    if (handler != null) {
-                        handler.createLayer(layerParser);
-                    }
-                    layerParser.parse(stream);
-                }
-
-                for (LayerParser layerParser : parsers) {
-                    layerParser.parseImageSection(stream);
-                }
-            }
-
-            int maskSize = length - (stream.getPos() - pos);
-            stream.skipBytes(maskSize);
+                parseLayerInfo(stream);
+                layersParsed = true;
+            }
+            stream.skipBytes(infoEnd - stream.getPos());
+
+            // global layer mask info
+            if (endPos - stream.getPos() >= 4) {
+                long maskInfoSize = stream.readInt() & 0xffffffffL;
+                stream.skipBytes(Math.min(maskInfoSize, endPos - stream.getPos()));
+            }
+
+            // 16 and 32 bit documents keep their layers in tagged blocks after it
+            parseAdditionalSections(stream, endPos, !layersParsed);
+
+            stream.skipBytes(endPos - stream.getPos());
+        }
+    }
+
+    private void parseLayerInfo(PsdInputStream stream) throws IOException {
+        int layersCount = stream.readShort();
+        if (layersCount < 0) {
+            mergedAlpha = true;
+            layersCount = -layersCount;
+        }
+        List<LayerParser> parsers = new ArrayList<LayerParser>(layersCount);
+        for (int i = 0; i < layersCount; i++) {
+            LayerParser layerParser = new LayerParser(header);
+            layerParser.setBufferPool(bufferPool);
+            parsers.add(layerParser);
+            if (handler != null) {
+                handler.createLayer(layerParser);
+            }
+            layerParser.parse(stream);
+            if (handler != null) {
+                handler.layerParsed(layerParser);
+            }
+        }
+        if (handler != null) {
+            handler.layerRecordsParsed();
+        }
+
+        for (LayerParser layerParser : parsers) {
+            if (skipImageData) {
+                layerParser.skipImageSection(stream);
+            } else {
+                layerParser.parseImageSection(stream);
+            }
+        }
+    }
+
+    /**
+     * Reads the tagged blocks at the end of the section. Lr16 and Lr32 hold
+     * the layer info of deep documents, they are only parsed if the layer
+     * info itself was empty. Blocks are padded to a multiple of 4 bytes.
+     */
+    private void parseAdditionalSections(PsdInputStream stream, long endPos, boolean parseLayers)
+            throws IOException {
+        while (endPos - stream.getPos() >= 12) {
+            int signature = stream.readFourCC();
+            if (signature != LayerParser.SIGNATURE && signature != LayerParser.LARGE_SIGNATURE) {
+                // padding or unknown data, skipped by the caller
+                return;
+            }
+            int tag = stream.readFourCC();
+            long size;
+            if (header.isLargeDocument() && LayerParser.LARGE_LENGTH_KEYS.contains(tag)) {
+                size = stream.readLong();
+            } else {
+                size = stream.readInt() & 0xffffffffL;
+            }
+            long blockEnd = stream.getPos() + ((size + 3) & ~0x03L);
+            if (blockEnd > endPos) {
+                return;
+            }
+
+            if (parseLayers && (tag == LAYERS_16 || tag == LAYERS_32) && size > 0) {
+                parseLayerInfo(stream);
+                parseLayers = false;
+            }
+
+            stream.skipBytes(blockEnd - stream.getPos());
         }
     }
 
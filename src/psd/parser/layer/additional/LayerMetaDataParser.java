@@ -27,6 +27,8 @@ import psd.parser.object.*;
 public class LayerMetaDataParser implements LayerAdditionalInformationParser {
 
 	public static final String TAG = "shmd";
+	private static final int SIGNATURE = PsdInputStream.fourCC("8BIM");
+	private static final int MLST = PsdInputStream.fourCC("mlst");
 	private final LayerMetaDataHandler handler;
 	
 	public LayerMetaDataParser(LayerMetaDataHandler handler) {
@@ -37,19 +39,18 @@ public class LayerMetaDataParser implements LayerAdditionalInformationParser {
 	public void parse(PsdInputStream stream, String tag, int size) throws IOException {
 		int countOfMetaData = stream.readInt();
 		for (int i = 0; i < countOfMetaData; i++) {
-			String dataTag = stream.readString(4);
-			if (!dataTag.equals("8BIM")) {
+			if (stream.readFourCC() != SIGNATURE) {
 				throw new IOException("layer meta data section signature error");
 			}
-			String key = stream.readString(4);
+			int key = stream.readFourCC();
 			
 			@SuppressWarnings("unused")
 			int copyOnSheetDuplication = stream.readByte();
 			
 			stream.skipBytes(3); // padding
 			int len = stream.readInt();
-			int pos = stream.getPos();
-			if (key.equals("mlst")) {
+			long pos = stream.getPos();
+			if (key == MLST) {
 				parseMlstSection(stream);
 			} else {
 			}
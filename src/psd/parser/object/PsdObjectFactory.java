@@ -1,11 +1,22 @@
 package psd.parser.object;
 
 import java.io.IOException;
+import java.util.logging.Level;
 
 import psd.parser.PsdInputStream;
 
 public class PsdObjectFactory {
 
+	private static final int OBJC = PsdInputStream.fourCC("Objc");
+	private static final int VLLS = PsdInputStream.fourCC("VlLs");
+	private static final int DOUB = PsdInputStream.fourCC("doub");
+	private static final int LONG = PsdInputStream.fourCC("long");
+	private static final int BOOL = PsdInputStream.fourCC("bool");
+	private static final int UNTF = PsdInputStream.fourCC("UntF");
+	private static final int ENUM = PsdInputStream.fourCC("enum");
+	private static final int TEXT = PsdInputStream.fourCC("TEXT");
+	private static final int TDTA = PsdInputStream.fourCC("tdta");
+
 	/**
 	 * Load psd object.
 	 *
@@ -16,28 +27,30 @@ public class PsdObjectFactory {
 	public static PsdObject loadPsdObject(PsdInputStream stream)
 			throws IOException {
 	
-		String type = stream.readString(4);
-		PsdObject.logger.finest("loadPsdObject.type: " + type);
-		if (type.equals("Objc")) {
+		int type = stream.readFourCC();
+		if (PsdObject.logger.isLoggable(Level.FINEST)) {
+			PsdObject.logger.finest("loadPsdObject.type: " + PsdInputStream.fourCCToString(type));
+		}
+		if (type == OBJC) {
 			return new PsdDescriptor(stream);
-		} else if (type.equals("VlLs")) {
+		} else if (type == VLLS) {
 			return new PsdList(stream);
-		} else if (type.equals("doub")) {
+		} else if (type == DOUB) {
 			return new PsdDouble(stream);
-		} else if (type.equals("long")) {
+		} else if (type == LONG) {
 			return new PsdLong(stream);
-		} else if (type.equals("bool")) {
+		} else if (type == BOOL) {
 			return new PsdBoolean(stream);
-		} else if (type.equals("UntF")) {
+		} else if (type == UNTF) {
 			return new PsdUnitFloat(stream);
-		} else if (type.equals("enum")) {
+		} else if (type == ENUM) {
 			return new PsdEnum(stream);
-		} else if (type.equals("TEXT")) {
+		} else if (type == TEXT) {
 			return new PsdText(stream);
-		} else if (type.equals("tdta")) {
+		} else if (type == TDTA) {
 			return new PsdTextData(stream);
 		} else {
-			throw new IOException("UNKNOWN TYPE <" + type + ">");
+			throw new IOException("UNKNOWN TYPE <" + PsdInputStream.fourCCToString(type) + ">");
 		}
 	
 	}
@@ -30,7 +30,7 @@ public class PsdTextData extends PsdObject {
 	
 	public PsdTextData(PsdInputStream stream) throws IOException {
 		int size = stream.readInt();
-		int startPos = stream.getPos();
+		long startPos = stream.getPos();
 		properties = readMap(stream);
 		assert startPos + size == stream.getPos();
 	}
@@ -0,0 +1,133 @@
+package psd.util;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Pool of channel and image buffers, grouped in size classes of a quarter
+ * power of two, so a buffer is less than a quarter longer than requested.
+ * Buffers are not cleared, so users have to overwrite the part they use. The
+ * pool is thread safe.
+ */
+public class BufferPool {
+
+    // every power of two is split into this many size classes
+    private static final int STEPS = 4;
+
+    // buffers longer than 2^30 are never pooled
+    private static final int MAX_POOLED = 1 << 30;
+    private static final int SIZE_CLASSES = sizeClass(MAX_POOLED) + 1;
+
+    private final ArrayBlockingQueue<byte[]>[] byteBuffers;
+    private final ArrayBlockingQueue<int[]>[] intBuffers;
+
+    public BufferPool() {
+        this(4);
+    }
+
+    /**
+     * @param maxBuffersPerClass how many free buffers of each size are kept
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public BufferPool(int maxBuffersPerClass) {
+        byteBuffers = new ArrayBlockingQueue[SIZE_CLASSES];
+        intBuffers = new ArrayBlockingQueue[SIZE_CLASSES];
+        for (int i = 0; i < SIZE_CLASSES; i++) {
+            byteBuffers[i] = new ArrayBlockingQueue<byte[]>(maxBuffersPerClass);
+            intBuffers[i] = new ArrayBlockingQueue<int[]>(maxBuffersPerClass);
+        }
+    }
+
+    private static int sizeClass(int size) {
+        if (size <= STEPS) {
+            return Math.max(size, 1) - 1;
+        }
+        // the classes step by a quarter of the power of two below size
+        int shift = 29 - Integer.numberOfLeadingZeros(size - 1);
+        return shift * STEPS + ((size - 1) >> shift);
+    }
+
+    private static int classSize(int sizeClass) {
+        if (sizeClass < STEPS) {
+            return sizeClass + 1;
+        }
+        int shift = sizeClass / STEPS - 1;
+        return (sizeClass % STEPS + STEPS + 1) << shift;
+    }
+
+    private static boolean isClassSize(int length) {
+        return length > 0 && length <= MAX_POOLED && classSize(sizeClass(length)) == length;
+    }
+
+    /**
+     * Returns a buffer of at least size bytes with undefined contents.
+     */
+    public byte[] getBytes(int size) {
+        if (size > MAX_POOLED) {
+            return new byte[size];
+        }
+        int sizeClass = sizeClass(size);
+        byte[] buffer = byteBuffers[sizeClass].poll();
+        return buffer != null ? buffer : new byte[classSize(sizeClass)];
+    }
+
+    /**
+     * Returns a buffer of at least size ints with undefined contents.
+     */
+    public int[] getInts(int size) {
+        if (size > MAX_POOLED) {
+            return new int[size];
+        }
+        int sizeClass = sizeClass(size);
+        int[] buffer = intBuffers[sizeClass].poll();
+        return buffer != null ? buffer : new int[classSize(sizeClass)];
+    }
+
+    public void release(byte[] buffer) {
+        if (buffer != null && isClassSize(buffer.length)) {
+            byteBuffers[sizeClass(buffer.length)].offer(buffer);
+        }
+    }
+
+    public void release(int[] buffer) {
+        if (buffer != null && isClassSize(buffer.length)) {
+            intBuffers[sizeClass(buffer.length)].offer(buffer);
+        }
+    }
+
+    /**
+     * Gives the buffers behind an image back to the pool. The image can't be
+     * used afterwards.
+     */
+    public void release(BufferedImage image) {
+        if (image == null) {
+            return;
+        }
+        DataBuffer dataBuffer = image.getRaster().getDataBuffer();
+        if (dataBuffer instanceof DataBufferInt) {
+            for (int i = 0; i < dataBuffer.getNumBanks(); i++) {
+                release(((DataBufferInt) dataBuffer).getData(i));
+            }
+        } else if (dataBuffer instanceof DataBufferByte) {
+            byte[][] banks = ((DataBufferByte) dataBuffer).getBankData();
+            for (int i = 0; i < banks.length; i++) {
+                // banded images can use one array for several bands
+                if (!containsBank(banks, i, banks[i])) {
+                    release(banks[i]);
+                }
+            }
+        }
+    }
+
+    private static boolean containsBank(byte[][] banks, int count, byte[] bank) {
+        for (int i = 0; i < count; i++) {
+            if (banks[i] == bank) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
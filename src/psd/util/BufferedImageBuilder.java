@@ -1,7 +1,13 @@
 package psd.util;
 
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
 import java.awt.image.*;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 
 import psd.parser.layer.Channel;
 
@@ -12,6 +18,7 @@ public class BufferedImageBuilder {
     private final int width;
     private final int height;
     private int opacity = -1;
+    private BufferPool bufferPool;
 
     public BufferedImageBuilder(List<Channel> channels, int width, int height) {
         this.uncompressedChannels = null;
@@ -31,67 +38,230 @@ public class BufferedImageBuilder {
         this.opacity = opacity;
     }
 
+    /**
+     * Channel buffers and the image buffer are taken from the pool. Decoded
+     * channels go back to it once the image is built, the image buffer when
+     * the image is released with BufferPool.release(BufferedImage).
+     */
+    public void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
     public BufferedImage makeImage() {
         if (width == 0 || height == 0) {
             return null;
         }
 
-        byte[] rChannel = getChannelData(Channel.RED);
-        byte[] gChannel = getChannelData(Channel.GREEN);
-        byte[] bChannel = getChannelData(Channel.BLUE);
-        byte[] aChannel = getChannelData(Channel.ALPHA);
-        applyOpacity(aChannel);
-
-        BufferedImage im = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        ChannelData[] rgba = decodeChannels();
+        BufferedImage im = createImage();
         int[] data = ((DataBufferInt) im.getRaster().getDataBuffer()).getData();
-        int n = width * height - 1;
-        while (n >= 0) {
-            int a = aChannel[n] & 0xff;
-            int r = rChannel[n] & 0xff;
-            int g = gChannel[n] & 0xff;
-            int b = bChannel[n] & 0xff;
-            data[n] = a << 24 | r << 16 | g << 8 | b;
-            n--;
+        int[] alphaTable = makeAlphaTable();
+        if (rgba[0].isConstant() || rgba[1].isConstant() || rgba[2].isConstant() || rgba[3].isConstant()) {
+            interleaveSparse(rgba, alphaTable, data);
+        } else {
+            interleave(rgba[0].getData(), rgba[1].getData(), rgba[2].getData(), rgba[3].getData(), alphaTable, data);
+        }
+
+        for (ChannelData channel : rgba) {
+            releaseChannel(channel.getData());
         }
         return im;
     }
 
+    private void interleave(byte[] rChannel, byte[] gChannel, byte[] bChannel, byte[] aChannel, int[] alphaTable,
+            int[] data) {
+        int size = width * height;
+        if (alphaTable == null) {
+            for (int i = 0; i < size; i++) {
+                data[i] = (aChannel[i] & 0xff) << 24 | (rChannel[i] & 0xff) << 16 | (gChannel[i] & 0xff) << 8
+                        | (bChannel[i] & 0xff);
+            }
+        } else {
+            // opacity is applied while interleaving, the alpha table holds the shifted result
+            for (int i = 0; i < size; i++) {
+                data[i] = alphaTable[aChannel[i] & 0xff] | (rChannel[i] & 0xff) << 16 | (gChannel[i] & 0xff) << 8
+                        | (bChannel[i] & 0xff);
+            }
+        }
+    }
+
+    /**
+     * Interleaving with one or more constant channels: the constant bits are
+     * filled in once and the stored channels are added one at a time.
+     */
+    private void interleaveSparse(ChannelData[] rgba, int[] alphaTable, int[] data) {
+        int size = width * height;
+        int constantBits = 0;
+        for (int c = 0; c < 3; c++) {
+            if (rgba[c].isConstant()) {
+                constantBits |= rgba[c].getConstantValue() << (16 - 8 * c);
+            }
+        }
+        if (rgba[3].isConstant()) {
+            int a = rgba[3].getConstantValue();
+            constantBits |= alphaTable == null ? a << 24 : alphaTable[a];
+        }
+        Arrays.fill(data, 0, size, constantBits);
+
+        for (int c = 0; c < 3; c++) {
+            byte[] channel = rgba[c].getData();
+            if (channel != null) {
+                int shift = 16 - 8 * c;
+                for (int i = 0; i < size; i++) {
+                    data[i] |= (channel[i] & 0xff) << shift;
+                }
+            }
+        }
+        byte[] aChannel = rgba[3].getData();
+        if (aChannel != null) {
+            if (alphaTable == null) {
+                for (int i = 0; i < size; i++) {
+                    data[i] |= (aChannel[i] & 0xff) << 24;
+                }
+            } else {
+                for (int i = 0; i < size; i++) {
+                    data[i] |= alphaTable[aChannel[i] & 0xff];
+                }
+            }
+        }
+    }
+
+    /**
+     * Same as makeImage(), but the image is a view over the decoded channels
+     * instead of an interleaved copy. Pixels should only be read, writing to
+     * them changes the channel arrays. Drawing such an image is slower than a
+     * TYPE_INT_ARGB one. Without an alpha channel or opacity the image has no
+     * alpha band.
+     */
+    public BufferedImage makeBandedImage() {
+        if (width == 0 || height == 0) {
+            return null;
+        }
+
+        ChannelData[] rgba = decodeChannels();
+        int size = width * height;
+        boolean opaque = opacity == -1 && rgba[3].isConstant() && rgba[3].getConstantValue() == 255;
+        byte[][] banks = new byte[opaque ? 3 : 4][];
+        for (int i = 0; i < banks.length; i++) {
+            banks[i] = rgba[i].toArray(size, bufferPool);
+        }
+        if (!opaque) {
+            applyOpacity(banks[3]);
+        }
+
+        DataBufferByte buffer = new DataBufferByte(banks, size);
+        int[] bankIndices = opaque ? new int[] { 0, 1, 2 } : new int[] { 0, 1, 2, 3 };
+        SampleModel sampleModel = new BandedSampleModel(DataBuffer.TYPE_BYTE, width, height, width, bankIndices,
+                new int[bankIndices.length]);
+        WritableRaster raster = Raster.createWritableRaster(sampleModel, buffer, null);
+        ColorModel colorModel = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB), !opaque, false,
+                opaque ? Transparency.OPAQUE : Transparency.TRANSLUCENT, DataBuffer.TYPE_BYTE);
+        return new BufferedImage(colorModel, raster, false, null);
+    }
+
+    private ChannelData[] decodeChannels() {
+        if (uncompressedChannels == null && ForkJoinTask.inForkJoinPool()) {
+            // running on a decode pool, uncompress the channels in parallel
+            List<ChannelTask> tasks = new ArrayList<ChannelTask>();
+            for (int channelId : new int[] { Channel.RED, Channel.GREEN, Channel.BLUE, Channel.ALPHA }) {
+                tasks.add(new ChannelTask(channelId));
+            }
+            ForkJoinTask.invokeAll(tasks);
+            return new ChannelData[] { tasks.get(0).getRawResult(), tasks.get(1).getRawResult(),
+                    tasks.get(2).getRawResult(), tasks.get(3).getRawResult() };
+        }
+        return new ChannelData[] { getChannelData(Channel.RED), getChannelData(Channel.GREEN),
+                getChannelData(Channel.BLUE), getChannelData(Channel.ALPHA) };
+    }
+
+    private BufferedImage createImage() {
+        if (bufferPool == null) {
+            return new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        }
+        DirectColorModel colorModel = (DirectColorModel) ColorModel.getRGBdefault();
+        DataBufferInt buffer = new DataBufferInt(bufferPool.getInts(width * height), width * height);
+        WritableRaster raster = Raster.createPackedRaster(buffer, width, height, width, colorModel.getMasks(), null);
+        return new BufferedImage(colorModel, raster, false, null);
+    }
+
+    private void releaseChannel(byte[] channel) {
+        if (bufferPool == null || channel == null) {
+            return;
+        }
+        // channels passed in by the caller are not ours to release
+        if (uncompressedChannels != null) {
+            for (byte[] c : uncompressedChannels) {
+                if (c == channel) {
+                    return;
+                }
+            }
+        }
+        bufferPool.release(channel);
+    }
+
+    /**
+     * Alpha value scaled by the opacity for each alpha byte, already shifted
+     * into the alpha position of an ARGB pixel. Null without an opacity.
+     */
+    private int[] makeAlphaTable() {
+        if (opacity == -1) {
+            return null;
+        }
+        int o = opacity & 0xff;
+        int[] table = new int[256];
+        for (int a = 0; a < 256; a++) {
+            // rounded, so an opacity of 255 keeps the alpha as it is
+            table[a] = (a * o + 127) / 255 << 24;
+        }
+        return table;
+    }
+
     private void applyOpacity(byte[] a) {
-        if (opacity != -1) {
-            double o = (opacity & 0xff) / 256.0;
-            for (int i = 0; i < a.length; i++) {
-                a[i] = (byte) ((a[i] & 0xff) * o);
+        int[] alphaTable = makeAlphaTable();
+        if (alphaTable != null) {
+            int size = width * height;
+            for (int i = 0; i < size; i++) {
+                a[i] = (byte) (alphaTable[a[i] & 0xff] >>> 24);
             }
         }
     }
 
-    private byte[] getChannelData(int channelId) {
+    private ChannelData getChannelData(int channelId) {
         if (uncompressedChannels == null) {
             for (Channel c : channels) {
                 if (channelId == c.getId() && c.getCompressedData() != null) {
-                    ChannelUncompressor uncompressor = new ChannelUncompressor();
-                    byte[] uncompressedChannel = uncompressor.uncompress(c.getCompressedData(), width, height);
+                    ChannelUncompressor uncompressor = new ChannelUncompressor(c.isLargeDocument(), c.getDepth());
+                    uncompressor.setBufferPool(bufferPool);
+                    byte[] uncompressedChannel = uncompressor.uncompress(c.getCompressedData(), width, height,
+                            channelId == Channel.ALPHA);
                     if (uncompressedChannel != null) {
-                        return uncompressedChannel;
+                        return new ChannelData(uncompressedChannel);
                     }
                 }
             }
         } else {
-            if (channelId >= 0 && uncompressedChannels[channelId] != null) {
-                return uncompressedChannels[channelId];
+            // alpha can follow the color channels
+            int index = channelId == Channel.ALPHA ? 3 : channelId;
+            if (index >= 0 && index < uncompressedChannels.length && uncompressedChannels[index] != null) {
+                return new ChannelData(uncompressedChannels[index]);
             }
         }
-        return fillBytes(width * height, (byte) (channelId == Channel.ALPHA ? 255 : 0));
+        // missing channels aren't filled in, alpha is opaque and colors are black
+        return ChannelData.constant(channelId == Channel.ALPHA ? 255 : 0);
     }
 
-    private byte[] fillBytes(int size, byte value) {
-        byte[] result = new byte[size];
-        if (value != 0) {
-            for (int i = 0; i < size; i++) {
-                result[i] = value;
-            }
+    @SuppressWarnings("serial")
+    private class ChannelTask extends RecursiveTask<ChannelData> {
+        private final int channelId;
+
+        public ChannelTask(int channelId) {
+            this.channelId = channelId;
+        }
+
+        @Override
+        protected ChannelData compute() {
+            return getChannelData(channelId);
         }
-        return result;
     }
 
 }
@@ -0,0 +1,63 @@
+package psd.util;
+
+import java.util.Arrays;
+
+/**
+ * Uncompressed samples of one channel. A channel that isn't stored in the file
+ * is a constant and has no array behind it.
+ */
+public class ChannelData {
+
+    private final byte[] data;
+    private final byte constantValue;
+
+    public ChannelData(byte[] data) {
+        this.data = data;
+        this.constantValue = 0;
+    }
+
+    private ChannelData(byte constantValue) {
+        this.data = null;
+        this.constantValue = constantValue;
+    }
+
+    public static ChannelData constant(int value) {
+        return new ChannelData((byte) value);
+    }
+
+    public boolean isConstant() {
+        return data == null;
+    }
+
+    /**
+     * Value of every sample of a constant channel.
+     */
+    public int getConstantValue() {
+        return constantValue & 0xff;
+    }
+
+    /**
+     * Samples of the channel, null for a constant channel. The array can be
+     * longer than the channel.
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    public int get(int index) {
+        return data == null ? constantValue & 0xff : data[index] & 0xff;
+    }
+
+    /**
+     * Samples of the channel as an array, a constant channel is filled into a
+     * new one (taken from the pool if there is one).
+     */
+    public byte[] toArray(int size, BufferPool bufferPool) {
+        if (data != null) {
+            return data;
+        }
+        byte[] result = bufferPool != null ? bufferPool.getBytes(size) : new byte[size];
+        Arrays.fill(result, 0, size, constantValue);
+        return result;
+    }
+}
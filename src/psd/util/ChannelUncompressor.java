@@ -7,44 +7,114 @@ public class ChannelUncompressor {
     public static final int ZIP_WITHOUT_PREDICTION = 2;
     public static final int ZIP_WITH_PREDICTION = 3;
 
+    private final boolean largeDocument;
+    private final int depth;
+    private BufferPool bufferPool;
+
     public ChannelUncompressor() {
+        this(false, 8);
+    }
+
+    public ChannelUncompressor(boolean largeDocument) {
+        this(largeDocument, 8);
+    }
+
+    /**
+     * Channels with a depth of 16 or 32 bits are converted to 8 bits while
+     * decoding.
+     */
+    public ChannelUncompressor(boolean largeDocument, int depth) {
+        this.largeDocument = largeDocument;
+        this.depth = depth;
+    }
+
+    /**
+     * Decoded channels are taken from the pool and can be longer than
+     * width * height.
+     */
+    public void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    private byte[] allocate(int size) {
+        return bufferPool != null ? bufferPool.getBytes(size) : new byte[size];
     }
 
     public byte[] uncompress(byte[] srcData, int width, int height) {
+        return uncompress(srcData, width, height, false);
+    }
+
+    /**
+     * Alpha channels are converted linearly, color channels of 32-bit
+     * documents are gamma corrected.
+     */
+    public byte[] uncompress(byte[] srcData, int width, int height, boolean alpha) {
         int compression = ((srcData[0] & 0xff) << 8) | (srcData[1] & 0xff);
+        SampleConverter converter = depth == 8 ? null : new SampleConverter(depth, alpha);
         switch (compression) {
         case UNCOMPRESSED:
-            return decodeUncompressedData(srcData, 2, width, height);
+            return decodeUncompressedData(srcData, 2, width, height, converter);
         case RLE:
-            return decodeRleData(srcData, 2, width, height);
+            return decodeRleData(srcData, 2, width, height, converter);
+        case ZIP_WITHOUT_PREDICTION:
+            return decodeZipData(srcData, 2, width, height, false, converter);
+        case ZIP_WITH_PREDICTION:
+            return decodeZipData(srcData, 2, width, height, true, converter);
         default:
             throw new RuntimeException("Unsupported channel compression: " + compression);
         }
     }
 
-    private byte[] decodeUncompressedData(byte[] data, int offset, int width, int height) {
+    private byte[] decodeUncompressedData(byte[] data, int offset, int width, int height, SampleConverter converter) {
         int size = width * height;
-        byte[] b = new byte[size];
-        System.arraycopy(data, offset, b, 0, size);
+        byte[] b = allocate(size);
+        if (converter == null) {
+            System.arraycopy(data, offset, b, 0, size);
+        } else {
+            int lineSize = width * converter.getBytesPerSample();
+            for (int i = 0; i < height; i++) {
+                converter.convertLine(data, offset + i * lineSize, b, i * width, width);
+            }
+        }
         return b;
     }
 
-    private byte[] decodeRleData(byte[] data, int offset, int width, int height) {
-        short[] lineLengths = new short[height];
+    private byte[] decodeZipData(byte[] data, int offset, int width, int height, boolean prediction,
+            SampleConverter converter) {
+        byte[] b = allocate(width * height);
+        if (converter != null) {
+            ZipUncompressor.inflateLines(data, offset, data.length - offset, b, width, height, prediction, converter);
+            return b;
+        }
+        ZipUncompressor.inflate(data, offset, data.length - offset, b, 0, width * height);
+        if (prediction) {
+            ZipUncompressor.undoPrediction(b, 0, width, height, 8);
+        }
+        return b;
+    }
+
+    private byte[] decodeRleData(byte[] data, int offset, int width, int height, SampleConverter converter) {
+        int[] lineLengths = new int[height];
+        int[] lineOffsets = new int[height];
         int srcPos = offset;
         for (int i = 0; i < height; i++) {
-            lineLengths[i] = (short) (((data[srcPos] & 0xff) << 8) | (data[srcPos + 1] & 0xff));
-            srcPos += 2;
+            if (largeDocument) {
+                lineLengths[i] = ((data[srcPos] & 0xff) << 24) | ((data[srcPos + 1] & 0xff) << 16)
+                        | ((data[srcPos + 2] & 0xff) << 8) | (data[srcPos + 3] & 0xff);
+                srcPos += 4;
+            } else {
+                lineLengths[i] = ((data[srcPos] & 0xff) << 8) | (data[srcPos + 1] & 0xff);
+                srcPos += 2;
+            }
         }
 
-        byte[] b = new byte[width * height];
-        int dstPos = 0;
         for (int i = 0; i < height; i++) {
-            int len = lineLengths[i];
-            RleLineUncompressor.decodeRleLine(data, srcPos, len, b, dstPos);
-            srcPos += len;
-            dstPos += width;
+            lineOffsets[i] = srcPos;
+            srcPos += lineLengths[i];
         }
+
+        byte[] b = allocate(width * height);
+        ParallelRleUncompressor.decodeRleLines(data, lineOffsets, lineLengths, 0, b, width, height, converter);
         return b;
     }
 }
@@ -0,0 +1,111 @@
+package psd.util;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Decodes the lines of an RLE compressed channel in parallel. The start of
+ * every line is known from the prefix sum of the line lengths, so the lines
+ * can be handed to RleLineUncompressor independently.
+ */
+public class ParallelRleUncompressor {
+
+    // smaller channels are decoded on the calling thread
+    private static final int MIN_PARALLEL_PIXELS = 1 << 20;
+    private static final int MIN_TASK_PIXELS = 1 << 16;
+
+    /**
+     * Decodes height lines of width bytes into dst. Line i is read from
+     * src[lineOffsets[lineIndex + i]] and is lineLengths[lineIndex + i] bytes long.
+     */
+    public static void decodeRleLines(byte[] src, int[] lineOffsets, int[] lineLengths, int lineIndex, byte[] dst,
+            int width, int height) {
+        decodeRleLines(src, lineOffsets, lineLengths, lineIndex, dst, width, height, null);
+    }
+
+    /**
+     * Same as above for 16 or 32-bit lines, which are converted to 8 bits with
+     * the converter as they are decoded.
+     */
+    public static void decodeRleLines(byte[] src, int[] lineOffsets, int[] lineLengths, int lineIndex, byte[] dst,
+            int width, int height, SampleConverter converter) {
+        LinesTask task = new LinesTask(src, lineOffsets, lineLengths, lineIndex, dst, width, converter, 0, height);
+        if ((long) width * height < MIN_PARALLEL_PIXELS) {
+            task.decode();
+        } else if (ForkJoinTask.inForkJoinPool()) {
+            task.invoke();
+        } else {
+            ForkJoinPool.commonPool().invoke(task);
+        }
+    }
+
+    /**
+     * Calculates the offset of every line from the line lengths. Offsets restart
+     * at zero every linesPerChannel lines.
+     */
+    public static int[] lineOffsets(int[] lineLengths, int linesPerChannel) {
+        int[] offsets = new int[lineLengths.length];
+        int offset = 0;
+        for (int i = 0; i < lineLengths.length; i++) {
+            if (i % linesPerChannel == 0) {
+                offset = 0;
+            }
+            offsets[i] = offset;
+            offset += lineLengths[i];
+        }
+        return offsets;
+    }
+
+    @SuppressWarnings("serial")
+    private static class LinesTask extends RecursiveAction {
+        private final byte[] src;
+        private final int[] lineOffsets;
+        private final int[] lineLengths;
+        private final int lineIndex;
+        private final byte[] dst;
+        private final int width;
+        private final SampleConverter converter;
+        private final int from;
+        private final int to;
+
+        public LinesTask(byte[] src, int[] lineOffsets, int[] lineLengths, int lineIndex, byte[] dst, int width,
+                SampleConverter converter, int from, int to) {
+            this.src = src;
+            this.lineOffsets = lineOffsets;
+            this.lineLengths = lineLengths;
+            this.lineIndex = lineIndex;
+            this.dst = dst;
+            this.width = width;
+            this.converter = converter;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if ((long) width * (to - from) <= MIN_TASK_PIXELS || to - from < 2) {
+                decode();
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new LinesTask(src, lineOffsets, lineLengths, lineIndex, dst, width, converter, from, middle),
+                    new LinesTask(src, lineOffsets, lineLengths, lineIndex, dst, width, converter, middle, to));
+        }
+
+        private void decode() {
+            if (converter == null) {
+                for (int i = from; i < to; i++) {
+                    RleLineUncompressor.decodeRleLine(src, lineOffsets[lineIndex + i], lineLengths[lineIndex + i], dst,
+                            i * width);
+                }
+                return;
+            }
+            byte[] line = new byte[width * converter.getBytesPerSample()];
+            for (int i = from; i < to; i++) {
+                RleLineUncompressor.decodeRleLine(src, lineOffsets[lineIndex + i], lineLengths[lineIndex + i], line, 0);
+                converter.convertLine(line, 0, dst, i * width, width);
+            }
+        }
+    }
+}
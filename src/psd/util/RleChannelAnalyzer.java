@@ -0,0 +1,144 @@
+package psd.util;
+
+import java.awt.Rectangle;
+
+/**
+ * Finds out if an RLE compressed channel has a single value and where its
+ * non-zero samples are, straight from the runs without decoding the channel.
+ * A solid channel is one repeat run (or a few) per line.
+ */
+public class RleChannelAnalyzer {
+
+    private final int width;
+    private final int height;
+    private boolean uniform = true;
+    private int value = -1;
+    private int left;
+    private int top;
+    private int right = -1;
+    private int bottom = -1;
+
+    private RleChannelAnalyzer(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.left = width;
+        this.top = height;
+    }
+
+    /**
+     * Analyzes the compressed data of an 8-bit channel as stored by
+     * Channel.getCompressedData(). Returns null if the channel isn't RLE
+     * compressed, is empty or the data is inconsistent.
+     */
+    public static RleChannelAnalyzer analyze(byte[] data, int width, int height, boolean largeDocument) {
+        if (data == null || data.length < 2 || width <= 0 || height <= 0) {
+            return null;
+        }
+        int compression = ((data[0] & 0xff) << 8) | (data[1] & 0xff);
+        if (compression != ChannelUncompressor.RLE) {
+            return null;
+        }
+        int lengthSize = largeDocument ? 4 : 2;
+        long linePos = 2 + (long) height * lengthSize;
+        if (linePos > data.length) {
+            return null;
+        }
+
+        RleChannelAnalyzer analyzer = new RleChannelAnalyzer(width, height);
+        int lengthPos = 2;
+        for (int y = 0; y < height; y++) {
+            int lineLength;
+            if (largeDocument) {
+                lineLength = ((data[lengthPos] & 0xff) << 24) | ((data[lengthPos + 1] & 0xff) << 16)
+                        | ((data[lengthPos + 2] & 0xff) << 8) | (data[lengthPos + 3] & 0xff);
+            } else {
+                lineLength = ((data[lengthPos] & 0xff) << 8) | (data[lengthPos + 1] & 0xff);
+            }
+            lengthPos += lengthSize;
+            if (lineLength < 0 || linePos + lineLength > data.length
+                    || !analyzer.analyzeLine(data, (int) linePos, lineLength, y)) {
+                return null;
+            }
+            linePos += lineLength;
+        }
+        return analyzer;
+    }
+
+    private boolean analyzeLine(byte[] src, int srcIndex, int slen, int y) {
+        int sIndex = srcIndex;
+        int max = sIndex + slen;
+        int x = 0;
+        while (sIndex < max) {
+            int n = src[sIndex++];
+            if (n < 0) {
+                n = 1 - n;
+                if (sIndex >= max || x + n > width) {
+                    return false;
+                }
+                addRun(src[sIndex++] & 0xff, x, n, y);
+                x += n;
+            } else {
+                n = n + 1;
+                if (sIndex + n > max || x + n > width) {
+                    return false;
+                }
+                for (int i = 0; i < n; i++) {
+                    addRun(src[sIndex++] & 0xff, x++, 1, y);
+                }
+            }
+        }
+        return x == width;
+    }
+
+    private void addRun(int v, int x, int n, int y) {
+        if (value == -1) {
+            value = v;
+        } else if (v != value) {
+            uniform = false;
+        }
+        if (v != 0) {
+            if (x < left) {
+                left = x;
+            }
+            if (x + n - 1 > right) {
+                right = x + n - 1;
+            }
+            if (y < top) {
+                top = y;
+            }
+            bottom = y;
+        }
+    }
+
+    /**
+     * True if every sample of the channel has the same value.
+     */
+    public boolean isUniform() {
+        return uniform;
+    }
+
+    /**
+     * Value of a uniform channel, the first sample otherwise.
+     */
+    public int getValue() {
+        return value;
+    }
+
+    /**
+     * Bounds of the non-zero samples, null if the channel is all zeros.
+     */
+    public Rectangle getNonZeroBounds() {
+        if (right == -1) {
+            return null;
+        }
+        return new Rectangle(left, top, right - left + 1, bottom - top + 1);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+}
@@ -0,0 +1,63 @@
+package psd.util;
+
+/**
+ * Converts lines of 16-bit or 32-bit samples to 8 bits. 16-bit samples are
+ * scaled, 32-bit samples are linear floats and are tone mapped with a gamma
+ * lookup table (alpha stays linear).
+ */
+public class SampleConverter {
+
+    private static final int GAMMA_STEPS = 4096;
+    private static final byte[] gammaTable = new byte[GAMMA_STEPS + 1];
+    static {
+        for (int i = 0; i <= GAMMA_STEPS; i++) {
+            gammaTable[i] = (byte) Math.round(255 * Math.pow(i / (double) GAMMA_STEPS, 1 / 2.2));
+        }
+    }
+
+    private final int depth;
+    private final boolean alpha;
+
+    public SampleConverter(int depth, boolean alpha) {
+        if (depth != 8 && depth != 16 && depth != 32) {
+            throw new RuntimeException("Unsupported channel depth: " + depth);
+        }
+        this.depth = depth;
+        this.alpha = alpha;
+    }
+
+    public int getBytesPerSample() {
+        return depth / 8;
+    }
+
+    public void convertLine(byte[] src, int srcOffset, byte[] dst, int dstOffset, int width) {
+        switch (depth) {
+        case 8:
+            System.arraycopy(src, srcOffset, dst, dstOffset, width);
+            break;
+        case 16:
+            for (int i = 0; i < width; i++) {
+                int v = ((src[srcOffset] & 0xff) << 8) | (src[srcOffset + 1] & 0xff);
+                // v * 255 / 65535, rounded
+                dst[dstOffset + i] = (byte) ((v * 255 + 32895) >> 16);
+                srcOffset += 2;
+            }
+            break;
+        case 32:
+            for (int i = 0; i < width; i++) {
+                int bits = ((src[srcOffset] & 0xff) << 24) | ((src[srcOffset + 1] & 0xff) << 16)
+                        | ((src[srcOffset + 2] & 0xff) << 8) | (src[srcOffset + 3] & 0xff);
+                float v = Float.intBitsToFloat(bits);
+                // also maps NaN to 0
+                v = v > 1 ? 1 : (v > 0 ? v : 0);
+                if (alpha) {
+                    dst[dstOffset + i] = (byte) (v * 255 + 0.5f);
+                } else {
+                    dst[dstOffset + i] = gammaTable[(int) (v * GAMMA_STEPS + 0.5f)];
+                }
+                srcOffset += 4;
+            }
+            break;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package psd.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Inflates ZIP compressed channel data, with or without prediction.
+ */
+public class ZipUncompressor {
+
+    // inflaters hold native zlib state, so they are reused between channels
+    private static final Queue<Inflater> inflaters = new ConcurrentLinkedQueue<Inflater>();
+
+    public static Inflater obtainInflater() {
+        Inflater inflater = inflaters.poll();
+        return inflater != null ? inflater : new Inflater();
+    }
+
+    public static void releaseInflater(Inflater inflater) {
+        inflater.reset();
+        inflaters.offer(inflater);
+    }
+
+    /**
+     * Inflates exactly dstLength bytes from src into dst.
+     */
+    public static void inflate(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset, int dstLength) {
+        Inflater inflater = obtainInflater();
+        try {
+            inflater.setInput(src, srcOffset, srcLength);
+            inflate(inflater, dst, dstOffset, dstLength);
+        } finally {
+            releaseInflater(inflater);
+        }
+    }
+
+    /**
+     * Inflates 16 or 32-bit data a line at a time and converts every line to 8
+     * bits, so the full precision channel is never held in memory.
+     */
+    public static void inflateLines(byte[] src, int srcOffset, int srcLength, byte[] dst, int width, int height,
+            boolean prediction, SampleConverter converter) {
+        Inflater inflater = obtainInflater();
+        try {
+            inflater.setInput(src, srcOffset, srcLength);
+            byte[] line = new byte[width * converter.getBytesPerSample()];
+            for (int y = 0; y < height; y++) {
+                inflate(inflater, line, 0, line.length);
+                if (prediction) {
+                    undoPrediction(line, 0, width, 1, converter.getBytesPerSample() * 8);
+                }
+                converter.convertLine(line, 0, dst, y * width, width);
+            }
+        } finally {
+            releaseInflater(inflater);
+        }
+    }
+
+    private static void inflate(Inflater inflater, byte[] dst, int dstOffset, int dstLength) {
+        try {
+            int n = 0;
+            while (n < dstLength) {
+                int count = inflater.inflate(dst, dstOffset + n, dstLength - n);
+                if (count == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new RuntimeException("Truncated zip channel data");
+                }
+                n += count;
+            }
+        } catch (DataFormatException e) {
+            throw new RuntimeException("Invalid zip channel data: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Undoes the delta prediction in place. Every sample of a line is stored as
+     * the difference to the sample before it. 32-bit lines are delta coded per
+     * byte with the bytes of the samples split into planes, so they are
+     * reordered afterwards.
+     */
+    public static void undoPrediction(byte[] data, int offset, int width, int height, int depth) {
+        switch (depth) {
+        case 8:
+            for (int y = 0; y < height; y++) {
+                int pos = offset + y * width;
+                int end = pos + width;
+                for (int i = pos + 1; i < end; i++) {
+                    data[i] += data[i - 1];
+                }
+            }
+            break;
+        case 16:
+            for (int y = 0; y < height; y++) {
+                int pos = offset + y * width * 2;
+                int end = pos + width * 2;
+                int prev = ((data[pos] & 0xff) << 8) | (data[pos + 1] & 0xff);
+                for (int i = pos + 2; i < end; i += 2) {
+                    prev = (prev + (((data[i] & 0xff) << 8) | (data[i + 1] & 0xff))) & 0xffff;
+                    data[i] = (byte) (prev >> 8);
+                    data[i + 1] = (byte) prev;
+                }
+            }
+            break;
+        case 32:
+            byte[] planes = new byte[width * 4];
+            for (int y = 0; y < height; y++) {
+                int pos = offset + y * width * 4;
+                int end = pos + width * 4;
+                for (int i = pos + 1; i < end; i++) {
+                    data[i] += data[i - 1];
+                }
+                System.arraycopy(data, pos, planes, 0, planes.length);
+                for (int i = 0; i < width; i++) {
+                    data[pos++] = planes[i];
+                    data[pos++] = planes[width + i];
+                    data[pos++] = planes[width * 2 + i];
+                    data[pos++] = planes[width * 3 + i];
+                }
+            }
+            break;
+        default:
+            throw new RuntimeException("Unsupported prediction depth: " + depth);
+        }
+    }
+}